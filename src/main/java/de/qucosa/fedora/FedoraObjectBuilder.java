@@ -27,9 +27,8 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import javax.xml.parsers.ParserConfigurationException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.net.URI;
+import java.util.*;
 
 public class FedoraObjectBuilder {
 
@@ -43,6 +42,7 @@ public class FedoraObjectBuilder {
     private String title;
     private String derivativeOfPid;
     private String state = "I";
+    private List<ExternalReference> externalReferences = new LinkedList<>();
 
     public DigitalObjectDocument build() throws ParserConfigurationException {
         DigitalObjectDocument dof = DigitalObjectDocument.Factory.newInstance();
@@ -55,7 +55,9 @@ public class FedoraObjectBuilder {
         if (qucosaXmlDocument != null) {
             addQucosaXMLContentDatastream(dobj);
         }
-        // TODO Add External Reference Datastreams
+        for (ExternalReference ref : externalReferences) {
+            addExternalReferenceDatastream(dobj, ref);
+        }
         return dof;
     }
 
@@ -106,6 +108,28 @@ public class FedoraObjectBuilder {
     }
 
     public FedoraObjectBuilder state(String state) throws FedoraObjectBuilderException {
+        assertValidState(state);
+        this.state = state;
+        return this;
+    }
+
+    public FedoraObjectBuilder addExternalReference(String dsid, String label, URI location, String mimeType,
+                                                    String state, String checksumType, String checksum)
+            throws FedoraObjectBuilderException {
+        assertValidState(state);
+        externalReferences.add(new ExternalReference(dsid, label, location, mimeType, state, checksumType, checksum));
+        return this;
+    }
+
+    public String pid() {
+        return pid;
+    }
+
+    public Set<String> URNs() {
+        return Collections.unmodifiableSet(URNs);
+    }
+
+    private void assertValidState(String state) throws FedoraObjectBuilderException {
         switch (state) {
             case "A":
                 break;
@@ -116,16 +140,30 @@ public class FedoraObjectBuilder {
             default:
                 throw new FedoraObjectBuilderException("Illegal object state '" + state + "'. Allowed is one of 'A', 'I' or 'D'.");
         }
-        this.state = state;
-        return this;
     }
 
-    public String pid() {
-        return pid;
-    }
+    private void addExternalReferenceDatastream(DigitalObjectDocument.DigitalObject dobj, ExternalReference ref) {
+        DatastreamType ds = dobj.addNewDatastream();
+        ds.setID(ref.dsid);
+        ds.setCONTROLGROUP(DatastreamType.CONTROLGROUP.E);
+        ds.setSTATE(StateType.Enum.forString(ref.state));
+        ds.setVERSIONABLE(false);
 
-    public Set<String> URNs() {
-        return Collections.unmodifiableSet(URNs);
+        DatastreamVersionType dsv = ds.addNewDatastreamVersion();
+        dsv.setID(ref.dsid + ".0");
+        dsv.setLABEL(ref.label);
+        dsv.setMIMETYPE((ref.mimeType != null) ? ref.mimeType : "application/octet-stream");
+
+        if (ref.checksumType != null) {
+            // without a digest value Fedora computes the checksum itself
+            ContentDigestType digest = dsv.addNewContentDigest();
+            digest.setTYPE(ContentDigestType.TYPE.Enum.forString(ref.checksumType));
+            if (ref.checksum != null) digest.setDIGEST(ref.checksum);
+        }
+
+        ContentLocationType location = dsv.addNewContentLocation();
+        location.setTYPE(ContentLocationType.TYPE.URL);
+        location.setREF(ref.location.toASCIIString());
     }
 
     private void addRELSEXTDatastream(DigitalObjectDocument.DigitalObject dobj) {
@@ -265,4 +303,25 @@ public class FedoraObjectBuilder {
         Node childNode = content.getDomNode().getOwnerDocument().importNode(qucosaXmlDocument.getDocumentElement(), true);
         content.getDomNode().appendChild(childNode);
     }
+
+    private static class ExternalReference {
+        final String dsid;
+        final String label;
+        final URI location;
+        final String mimeType;
+        final String state;
+        final String checksumType;
+        final String checksum;
+
+        ExternalReference(String dsid, String label, URI location, String mimeType,
+                          String state, String checksumType, String checksum) {
+            this.dsid = dsid;
+            this.label = label;
+            this.location = location;
+            this.mimeType = mimeType;
+            this.state = state;
+            this.checksumType = checksumType;
+            this.checksum = checksum;
+        }
+    }
 }
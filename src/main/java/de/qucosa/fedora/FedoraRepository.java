@@ -21,6 +21,7 @@ import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraClientException;
 import com.yourmediashelf.fedora.client.request.*;
 import com.yourmediashelf.fedora.client.response.*;
+import com.yourmediashelf.fedora.generated.access.DatastreamType;
 import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
 import de.qucosa.util.Tuple;
 import fedora.fedoraSystemDef.foxml.DigitalObjectDocument;
@@ -31,17 +32,33 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-public class FedoraRepository {
+public class FedoraRepository implements PIDPool.PIDSource {
 
     public static final String RELATION_DERIVATIVE = "isDerivationOf";
     public static final String RELATION_CONSTITUENT = "isConstituentOf";
     public static final String DEFAULT_CHECKSUM_TYPE = "SHA-512";
+    public static final String DISABLED_CHECKSUM_TYPE = "DISABLED";
     private final FedoraClient fedoraClient;
+    private final PIDIndex pidIndex;
+    private final PIDPool pidPool;
 
     public FedoraRepository(FedoraClient fedoraClient) {
+        this(fedoraClient, null, null);
+    }
+
+    public FedoraRepository(FedoraClient fedoraClient, PIDIndex pidIndex) {
+        this(fedoraClient, pidIndex, null);
+    }
+
+    public FedoraRepository(FedoraClient fedoraClient, PIDIndex pidIndex, PIDPool pidPool) {
         this.fedoraClient = fedoraClient;
+        this.pidIndex = pidIndex;
+        this.pidPool = pidPool;
     }
 
     public List<String> getPIDsByPattern(String regexp) throws FedoraClientException, IOException {
@@ -61,6 +78,44 @@ public class FedoraRepository {
         return result;
     }
 
+    public <E extends Exception> void streamPIDsByPattern(String regexp, int offset, int limit, PIDHandler<E> handler)
+            throws FedoraClientException, IOException, E {
+        if ((pidIndex != null) && pidIndex.isCurrent() && pidIndex.getPattern().equals(regexp)) {
+            pidIndex.forEach(offset, limit, handler);
+        } else {
+            streamPIDsFromResourceIndex(regexp, offset, limit, handler);
+        }
+    }
+
+    public <E extends Exception> void streamPIDsFromResourceIndex(String regexp, int offset, int limit, PIDHandler<E> handler)
+            throws FedoraClientException, IOException, E {
+        StringBuilder query = new StringBuilder()
+                .append("select $pid ")
+                .append("where { ?_ <dc:identifier> $pid . ")
+                .append("filter regex($pid, '").append(regexp).append("')}");
+        if ((offset > 0) || (limit >= 0)) {
+            // paging needs a stable order
+            query.append(" order by $pid");
+            if (limit >= 0) query.append(" limit ").append(limit);
+            if (offset > 0) query.append(" offset ").append(offset);
+        }
+        RiSearchResponse riSearchResponse = null;
+        try {
+            RiSearch riSearch = new RiSearch(query.toString()).format("csv").stream(true);
+            riSearchResponse = riSearch.execute(fedoraClient);
+            InputStream in = riSearchResponse.getEntityInputStream();
+            if (in == null) return;
+            BufferedReader b = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            b.readLine(); // skip header
+            String line;
+            while ((line = b.readLine()) != null) {
+                if (!line.isEmpty()) handler.handle(line);
+            }
+        } finally {
+            closeIfNotNull(riSearchResponse);
+        }
+    }
+
     public String getPIDByIdentifier(String identifier) throws FedoraClientException, IOException {
         String query = "select $pid where { $pid <dc:identifier> '" + identifier + "' }";
         RiSearchResponse riSearchResponse = null;
@@ -107,28 +162,37 @@ public class FedoraRepository {
         return datastreamProfileResponse.getDatastreamProfile();
     }
 
-    public DatastreamProfile createExternalReferenceDatastream(String pid, String dsid, String label, URI target, String contentType, String state)
+    // Fedora computes the checksum itself if none is given, and verifies it otherwise.
+    // Checksum type DISABLED skips reading the external content altogether.
+    public DatastreamProfile createExternalReferenceDatastream(String pid, String dsid, String label, URI target, String contentType, String state,
+                                                               String checksumType, String checksum)
             throws FedoraClientException, IOException {
-        DatastreamProfileResponse response =
-                (DatastreamProfileResponse) fedoraClient.execute(
-                        new AddDatastream(pid, dsid)
-                                .controlGroup("E")
-                                .checksumType(DEFAULT_CHECKSUM_TYPE)
-                                .dsState(state)
-                                .versionable(false)
-                                .dsLabel(label)
-                                .dsLocation(target.toASCIIString())
-                                .mimeType(contentType)
-                );
+        AddDatastream request = new AddDatastream(pid, dsid)
+                .controlGroup("E")
+                .checksumType(checksumType)
+                .dsState(state)
+                .versionable(false)
+                .dsLabel(label)
+                .dsLocation(target.toASCIIString())
+                .mimeType(contentType);
+        if (checksum != null) request.checksum(checksum);
+        DatastreamProfileResponse response = (DatastreamProfileResponse) fedoraClient.execute(request);
         return response.getDatastreamProfile();
     }
 
     public void modifyDatastreamContent(String pid, String dsid, String mimeType, InputStream input) throws FedoraClientException {
-        FedoraResponse response = fedoraClient.execute(
-                new ModifyDatastream(pid, dsid)
-                        .content(input)
-                        .mimeType(mimeType)
-        );
+        modifyDatastreamContent(pid, dsid, mimeType, input, null);
+    }
+
+    // With a lastModifiedDate given, Fedora refuses with status 409 if the
+    // datastream has been modified after that date.
+    public void modifyDatastreamContent(String pid, String dsid, String mimeType, InputStream input, Date lastModifiedDate)
+            throws FedoraClientException {
+        ModifyDatastream request = new ModifyDatastream(pid, dsid)
+                .content(input)
+                .mimeType(mimeType);
+        if (lastModifiedDate != null) request.lastModifiedDate(lastModifiedDate);
+        FedoraResponse response = fedoraClient.execute(request);
         int status = response.getStatus();
         if (status != 200) {
             throw new FedoraClientException(status, "Error writing modifying datastream content.");
@@ -177,15 +241,30 @@ public class FedoraRepository {
     }
 
     public String mintPid(String namespace) throws FedoraClientException {
+        if ((pidPool != null) && (namespace != null)) {
+            return pidPool.take(namespace, this);
+        }
         GetNextPIDResponse response =
                 (GetNextPIDResponse) fedoraClient.execute(new GetNextPID().namespace(namespace));
         return response.getPid();
     }
 
+    @Override
+    public List<String> mintPids(String namespace, int count) throws FedoraClientException {
+        GetNextPIDResponse response =
+                (GetNextPIDResponse) fedoraClient.execute(new GetNextPID().namespace(namespace).numPIDs(count));
+        List<String> pids = response.getPids().getPid();
+        if (pids.isEmpty()) {
+            throw new FedoraClientException("Fedora returned no PIDs for namespace " + namespace);
+        }
+        return pids;
+    }
+
     public String ingest(DigitalObjectDocument ingestObject) throws FedoraClientException {
         Ingest ingest = new Ingest();
         ingest.content(ingestObject.newInputStream());
         IngestResponse ir = ingest.execute(fedoraClient);
+        if (pidIndex != null) pidIndex.add(ir.getPid());
         return ir.getPid();
     }
 
@@ -199,6 +278,15 @@ public class FedoraRepository {
         return (response.getStatus() == 200);
     }
 
+    public Set<String> getDatastreamIds(String pid) throws FedoraClientException {
+        Set<String> result = new HashSet<>();
+        ListDatastreamsResponse response = new ListDatastreams(pid).execute(fedoraClient);
+        for (DatastreamType ds : response.getDatastreams()) {
+            result.add(ds.getDsid());
+        }
+        return result;
+    }
+
     public void modifyObjectMetadata(String pid, String state, String label, String owner)
             throws FedoraClientException {
         ModifyObject modifyObjectRequest = new ModifyObject(pid);
@@ -216,12 +304,17 @@ public class FedoraRepository {
 
     public void purge(String pid) throws FedoraClientException {
         fedoraClient.execute(new PurgeObject(pid));
+        if (pidIndex != null) pidIndex.remove(pid);
     }
 
     public void purgeDatastream(String pid, String dsid) throws FedoraClientException {
         fedoraClient.execute(new PurgeDatastream(pid, dsid));
     }
 
+    public interface PIDHandler<E extends Exception> {
+        void handle(String pid) throws E;
+    }
+
     private void closeIfNotNull(FedoraResponse fr) {
         if (fr != null) fr.close();
     }
@@ -35,10 +35,10 @@ class FedoraRepositoryFactory {
 
     @Bean
     @Scope("request")
-    public FedoraRepository fedoraRepositoryConnection(Authentication auth, FedoraAuthorityCredentialsMap fedoraAuthorityCredentialsMap) throws Exception {
+    public FedoraRepository fedoraRepositoryConnection(Authentication auth, FedoraAuthorityCredentialsMap fedoraAuthorityCredentialsMap, PIDIndex pidIndex, PIDPool pidPool) throws Exception {
         FedoraCredentials fc = getFedoraCredentials(auth, fedoraAuthorityCredentialsMap);
         if (!clients.containsKey(fc)) {
-            clients.put(fc, new FedoraRepository(new FedoraClient(fc)));
+            clients.put(fc, new FedoraRepository(new FedoraClient(fc), pidIndex, pidPool));
         }
         return clients.get(fc);
     }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.fedora;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.regex.Pattern;
+
+public class PIDIndex {
+
+    private final String pattern;
+    private final Pattern compiledPattern;
+    private final long maxAgeMillis;
+    private final ConcurrentSkipListSet<String> pids = new ConcurrentSkipListSet<>();
+    private final Set<String> touchedDuringReconcile = new HashSet<>();
+    private volatile boolean loaded = false;
+    private volatile long lastReconciled = -1;
+    private boolean reconciling = false;
+
+    public PIDIndex(String pattern) {
+        this(pattern, -1);
+    }
+
+    // With a negative maximum age, the index is used however long ago it was reconciled.
+    public PIDIndex(String pattern, long maxAgeMillis) {
+        this.pattern = pattern;
+        this.compiledPattern = Pattern.compile(pattern);
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // Only a recently reconciled index is used, so that listings fall back to the
+    // resource index if reconciling keeps failing.
+    public boolean isCurrent() {
+        return isCurrent(System.currentTimeMillis());
+    }
+
+    boolean isCurrent(long now) {
+        return loaded && ((maxAgeMillis < 0) || (now - lastReconciled <= maxAgeMillis));
+    }
+
+    public long getLastReconciled() {
+        return lastReconciled;
+    }
+
+    public int size() {
+        return pids.size();
+    }
+
+    public boolean contains(String pid) {
+        return pids.contains(pid);
+    }
+
+    public void add(String pid) {
+        if ((pid == null) || !compiledPattern.matcher(pid).find()) return;
+        synchronized (touchedDuringReconcile) {
+            pids.add(pid);
+            if (reconciling) touchedDuringReconcile.add(pid);
+        }
+    }
+
+    public void remove(String pid) {
+        if (pid == null) return;
+        synchronized (touchedDuringReconcile) {
+            pids.remove(pid);
+            if (reconciling) touchedDuringReconcile.add(pid);
+        }
+    }
+
+    // PIDs added or removed after beginReconcile() keep their state when the
+    // (possibly older) resource index result is applied in completeReconcile().
+    public void beginReconcile() {
+        synchronized (touchedDuringReconcile) {
+            touchedDuringReconcile.clear();
+            reconciling = true;
+        }
+    }
+
+    public void completeReconcile(Collection<String> currentPids) {
+        Set<String> current = new HashSet<>(currentPids);
+        synchronized (touchedDuringReconcile) {
+            for (String pid : current) {
+                if (!touchedDuringReconcile.contains(pid) && compiledPattern.matcher(pid).find()) pids.add(pid);
+            }
+            Iterator<String> it = pids.iterator();
+            while (it.hasNext()) {
+                String pid = it.next();
+                if (!current.contains(pid) && !touchedDuringReconcile.contains(pid)) it.remove();
+            }
+            touchedDuringReconcile.clear();
+            reconciling = false;
+        }
+        lastReconciled = System.currentTimeMillis();
+        loaded = true;
+    }
+
+    public void abortReconcile() {
+        synchronized (touchedDuringReconcile) {
+            touchedDuringReconcile.clear();
+            reconciling = false;
+        }
+    }
+
+    public <E extends Exception> void forEach(int offset, int limit, FedoraRepository.PIDHandler<E> handler) throws E {
+        int skipped = 0;
+        int handled = 0;
+        for (String pid : pids) {
+            if ((limit >= 0) && (handled >= limit)) break;
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            handler.handle(pid);
+            handled++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PIDIndex[pattern=%s, size=%d, loaded=%s, current=%s]", pattern, size(), loaded, isCurrent());
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.fedora;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.FedoraCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PIDIndexReconciler {
+
+    private final Logger log = LoggerFactory.getLogger(PIDIndexReconciler.class);
+    private final PIDIndex pidIndex;
+    private final FedoraRepository fedoraRepository;
+
+    public PIDIndexReconciler(PIDIndex pidIndex, FedoraRepository fedoraRepository) {
+        this.pidIndex = pidIndex;
+        this.fedoraRepository = fedoraRepository;
+    }
+
+    PIDIndexReconciler(PIDIndex pidIndex, FedoraAuthorityCredentialsMap credentialsMap, String authority) {
+        this(pidIndex, new FedoraRepository(new FedoraClient(getCredentials(credentialsMap, authority))));
+    }
+
+    public void reconcile() {
+        final List<String> pids = new ArrayList<>();
+        pidIndex.beginReconcile();
+        try {
+            // bypasses the index itself, it must not be consulted by the repository here
+            fedoraRepository.streamPIDsFromResourceIndex(pidIndex.getPattern(), 0, -1,
+                    new FedoraRepository.PIDHandler<RuntimeException>() {
+                        @Override
+                        public void handle(String pid) {
+                            pids.add(pid);
+                        }
+                    });
+            pidIndex.completeReconcile(pids);
+            log.debug("Reconciled {}", pidIndex);
+        } catch (Exception e) {
+            pidIndex.abortReconcile();
+            log.warn("Reconciling PID index failed: {}", e.getMessage());
+        }
+    }
+
+    private static FedoraCredentials getCredentials(FedoraAuthorityCredentialsMap credentialsMap, String authority) {
+        FedoraCredentials credentials = credentialsMap.get(authority);
+        if (credentials == null) {
+            throw new IllegalArgumentException("No Fedora credential configured for authority " + authority);
+        }
+        return credentials;
+    }
+
+}
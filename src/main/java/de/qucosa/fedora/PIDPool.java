@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.qucosa.fedora;
+
+import com.yourmediashelf.fedora.client.FedoraClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Reserves PIDs in blocks and hands them out without locking. PIDs still
+// in the pool when the application stops are never used, which only
+// leaves gaps in the numbering.
+public class PIDPool {
+
+    public interface PIDSource {
+        List<String> mintPids(String namespace, int count) throws FedoraClientException;
+    }
+
+    private final Logger log = LoggerFactory.getLogger(PIDPool.class);
+    private final ConcurrentMap<String, Reservation> reservations = new ConcurrentHashMap<>();
+    private final TaskExecutor executor;
+    private final int blockSize;
+    private final int lowWaterMark;
+
+    public PIDPool(TaskExecutor executor, int blockSize, int lowWaterMark) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be at least 1");
+        }
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.lowWaterMark = lowWaterMark;
+    }
+
+    public String take(String namespace, PIDSource source) throws FedoraClientException {
+        Reservation reservation = getReservation(namespace);
+        String pid = reservation.poll();
+        if (pid == null) {
+            // pool ran dry, so this caller has to wait for a block anyway
+            List<String> block = source.mintPids(namespace, blockSize);
+            pid = block.get(0);
+            reservation.offer(block.subList(1, block.size()));
+        }
+        if (reservation.available() < lowWaterMark) {
+            refill(namespace, reservation, source);
+        }
+        return pid;
+    }
+
+    public int available(String namespace) {
+        Reservation reservation = reservations.get(namespace);
+        return (reservation == null) ? 0 : reservation.available();
+    }
+
+    private void refill(final String namespace, final Reservation reservation, final PIDSource source) {
+        if (!reservation.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reservation.offer(source.mintPids(namespace, blockSize));
+                    } catch (Exception e) {
+                        log.warn("Cannot reserve PIDs for namespace '{}': {}", namespace, e.getMessage());
+                    } finally {
+                        reservation.refilling.set(false);
+                    }
+                }
+            });
+        } catch (TaskRejectedException e) {
+            reservation.refilling.set(false);
+        }
+    }
+
+    private Reservation getReservation(String namespace) {
+        Reservation reservation = reservations.get(namespace);
+        if (reservation == null) {
+            reservation = new Reservation();
+            Reservation existing = reservations.putIfAbsent(namespace, reservation);
+            if (existing != null) reservation = existing;
+        }
+        return reservation;
+    }
+
+    private static class Reservation {
+        final ConcurrentLinkedQueue<String> pids = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicBoolean refilling = new AtomicBoolean();
+
+        String poll() {
+            String pid = pids.poll();
+            if (pid != null) count.decrementAndGet();
+            return pid;
+        }
+
+        void offer(List<String> block) {
+            pids.addAll(block);
+            count.addAndGet(block.size());
+        }
+
+        int available() {
+            return count.get();
+        }
+    }
+
+}
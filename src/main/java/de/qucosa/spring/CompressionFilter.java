@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.spring;
+
+import org.springframework.web.filter.GenericFilterBean;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class CompressionFilter extends GenericFilterBean {
+
+    private final int minSize;
+    private final int level;
+
+    public CompressionFilter(int minSize, int level) {
+        this.minSize = minSize;
+        this.level = level;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+        httpResponse.addHeader("Vary", "Accept-Encoding");
+        String encoding = negotiateEncoding(httpRequest.getHeader("Accept-Encoding"));
+        if (encoding == null || "HEAD".equals(httpRequest.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final CompressingResponseWrapper wrapper = new CompressingResponseWrapper(httpResponse, encoding);
+        boolean async = false;
+        try {
+            chain.doFilter(request, wrapper);
+            async = request.isAsyncStarted();
+        } finally {
+            if (!async) wrapper.finish();
+        }
+        // the body of an async request is written later, so its stream is finished on completion
+        if (async) {
+            request.getAsyncContext().addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) throws IOException {
+                    wrapper.finish();
+                }
+
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+        }
+    }
+
+    private String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        Set<String> accepted = new HashSet<>();
+        Set<String> rejected = new HashSet<>();
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim().toLowerCase();
+            if (coding.equals("x-gzip")) coding = "gzip";
+            if (isRejected(params)) {
+                rejected.add(coding);
+            } else {
+                accepted.add(coding);
+            }
+        }
+        // "*" only stands for codings that are not refused explicitly
+        boolean any = accepted.contains("*") && !rejected.contains("*");
+        for (String coding : new String[]{"gzip", "deflate"}) {
+            if (rejected.contains(coding)) continue;
+            if (accepted.contains(coding) || any) return coding;
+        }
+        return null;
+    }
+
+    private boolean isRejected(String[] params) {
+        for (int i = 1; i < params.length; i++) {
+            String p = params[i].trim();
+            if (p.startsWith("q=")) {
+                try {
+                    return Float.parseFloat(p.substring(2)) == 0f;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // The compressed body is a representation of its own, so a strong entity tag
+    // gets the coding appended. Resources accept the tag with or without it.
+    private void markEntityTag(HttpServletResponse response, String encoding) {
+        String etag = response.getHeader("ETag");
+        if ((etag != null) && !etag.startsWith("W/") && etag.endsWith("\"")) {
+            response.setHeader("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
+        }
+    }
+
+    private class CompressingResponseWrapper extends HttpServletResponseWrapper {
+
+        private final String encoding;
+        private CompressingServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        CompressingResponseWrapper(HttpServletResponse response, String encoding) {
+            super(response);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) throw new IllegalStateException("getWriter() has already been called");
+            return getCompressingStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (outputStream != null) throw new IllegalStateException("getOutputStream() has already been called");
+                writer = new PrintWriter(new OutputStreamWriter(getCompressingStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            // body length is known only after deciding about compression
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.addHeader(name, value);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.setIntHeader(name, value);
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.addIntHeader(name, value);
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) writer.flush();
+            if (outputStream != null) outputStream.flush();
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (outputStream != null) outputStream.reset();
+            super.resetBuffer();
+        }
+
+        @Override
+        public void reset() {
+            if (outputStream != null) outputStream.reset();
+            super.reset();
+        }
+
+        void finish() throws IOException {
+            if (writer != null) writer.flush();
+            if (outputStream != null) outputStream.finish();
+            // tells the client which entity tag to send along with the encoding it accepts
+            if (getStatus() == HttpServletResponse.SC_NOT_MODIFIED) markEntityTag(getHttpResponse(), encoding);
+        }
+
+        private CompressingServletOutputStream getCompressingStream() {
+            if (outputStream == null) {
+                outputStream = new CompressingServletOutputStream(this, encoding);
+            }
+            return outputStream;
+        }
+
+        private HttpServletResponse getHttpResponse() {
+            return (HttpServletResponse) getResponse();
+        }
+    }
+
+    // Buffers up to minSize bytes, then either switches to compressed streaming
+    // or, if the body stays small, writes it uncompressed with a Content-Length.
+    private class CompressingServletOutputStream extends ServletOutputStream {
+
+        private final CompressingResponseWrapper wrapper;
+        private final String encoding;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private DeflaterOutputStream compressor;
+        private Deflater deflater;
+        private boolean finished = false;
+
+        CompressingServletOutputStream(CompressingResponseWrapper wrapper, String encoding) {
+            this.wrapper = wrapper;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) throw new IOException("Stream already finished");
+            if (compressor != null) {
+                compressor.write(b, off, len);
+                return;
+            }
+            buffer.write(b, off, len);
+            if (buffer.size() >= minSize) {
+                startCompression();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // a partial buffer is held back until the compression decision is made
+            if (compressor != null) compressor.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                wrapper.getHttpResponse().getOutputStream().setWriteListener(writeListener);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void reset() {
+            if (compressor == null) buffer.reset();
+        }
+
+        void finish() throws IOException {
+            if (finished) return;
+            finished = true;
+            if (compressor != null) {
+                try {
+                    compressor.close();
+                } finally {
+                    if (deflater != null) deflater.end();
+                }
+            } else if (buffer.size() > 0) {
+                HttpServletResponse response = wrapper.getHttpResponse();
+                response.setContentLength(buffer.size());
+                buffer.writeTo(response.getOutputStream());
+                buffer = null;
+            }
+        }
+
+        private void startCompression() throws IOException {
+            HttpServletResponse response = wrapper.getHttpResponse();
+            response.setHeader("Content-Encoding", encoding);
+            markEntityTag(response, encoding);
+            OutputStream out = response.getOutputStream();
+            if (encoding.equals("gzip")) {
+                compressor = new GZIPOutputStream(out, true) {{
+                    def.setLevel(level);
+                }};
+            } else {
+                deflater = new Deflater(level);
+                compressor = new DeflaterOutputStream(out, deflater, true);
+            }
+            buffer.writeTo(compressor);
+            buffer = null;
+        }
+    }
+
+}
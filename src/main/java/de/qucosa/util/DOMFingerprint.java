@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.qucosa.util;
+
+import org.w3c.dom.*;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Digest of the information content of a DOM tree. Whitespace between elements,
+// attribute order, namespace prefixes, comments and processing instructions do
+// not change the fingerprint, so documents that only differ in serialization match.
+// For the elements named as unordered, only the order among equally named children counts.
+public class DOMFingerprint {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Comparator<Node> NAME_ORDER = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return key(a).compareTo(key(b));
+        }
+    };
+
+    public static byte[] of(Document document, String... unorderedElements) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-512 not available", e);
+        }
+        update(digest, document.getDocumentElement(), new HashSet<>(Arrays.asList(unorderedElements)));
+        return digest.digest();
+    }
+
+    public static boolean equal(byte[] a, byte[] b) {
+        return MessageDigest.isEqual(a, b);
+    }
+
+    private static void update(MessageDigest digest, Element element, Set<String> unorderedElements) {
+        digest.update((byte) '<');
+        digest.update(key(element).getBytes(UTF8));
+
+        NamedNodeMap attributes = element.getAttributes();
+        List<Node> sorted = new ArrayList<>(attributes.getLength());
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attr = (Attr) attributes.item(i);
+            if (!"http://www.w3.org/2000/xmlns/".equals(attr.getNamespaceURI())) sorted.add(attr);
+        }
+        Collections.sort(sorted, NAME_ORDER);
+        for (Node attr : sorted) {
+            digest.update((byte) '@');
+            digest.update(key(attr).getBytes(UTF8));
+            digest.update((byte) '=');
+            digest.update(attr.getNodeValue().getBytes(UTF8));
+            digest.update((byte) 0);
+        }
+
+        if (unorderedElements.contains(element.getLocalName())) {
+            updateUnorderedChildren(digest, element, unorderedElements);
+            return;
+        }
+
+        // adjacent text and CDATA nodes count as one
+        StringBuilder text = new StringBuilder();
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    text.append(child.getNodeValue());
+                    break;
+                case Node.ELEMENT_NODE:
+                    updateText(digest, text);
+                    update(digest, (Element) child, unorderedElements);
+                    break;
+                default:
+                    break;
+            }
+        }
+        updateText(digest, text);
+        digest.update((byte) '>');
+    }
+
+    private static void updateUnorderedChildren(MessageDigest digest, Element element, Set<String> unorderedElements) {
+        StringBuilder text = new StringBuilder();
+        List<Node> children = new ArrayList<>();
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    text.append(child.getNodeValue());
+                    break;
+                case Node.ELEMENT_NODE:
+                    children.add(child);
+                    break;
+                default:
+                    break;
+            }
+        }
+        updateText(digest, text);
+        // stable sort, equally named children keep their order
+        Collections.sort(children, NAME_ORDER);
+        for (Node child : children) {
+            update(digest, (Element) child, unorderedElements);
+        }
+        digest.update((byte) '>');
+    }
+
+    private static void updateText(MessageDigest digest, StringBuilder text) {
+        if (text.toString().trim().length() > 0) {
+            digest.update((byte) '"');
+            digest.update(text.toString().getBytes(UTF8));
+            digest.update((byte) 0);
+        }
+        text.setLength(0);
+    }
+
+    private static String key(Node node) {
+        String localName = (node.getLocalName() != null) ? node.getLocalName() : node.getNodeName();
+        return (node.getNamespaceURI() != null) ? node.getNamespaceURI() + "|" + localName : localName;
+    }
+
+}
@@ -30,7 +30,7 @@ import java.io.StringWriter;
 public class DOMSerializer {
 
     private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
-    private static Transformer TRANSFORMER;
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<>();
 
     public static String toString(final Document document) {
         try {
@@ -44,14 +44,18 @@ public class DOMSerializer {
     }
 
     private static Transformer getTransformer() throws TransformerConfigurationException {
-        if (TRANSFORMER == null) {
-            TRANSFORMER = TRANSFORMER_FACTORY.newTransformer();
-            TRANSFORMER.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-            TRANSFORMER.setOutputProperty(OutputKeys.METHOD, "xml");
-            TRANSFORMER.setOutputProperty(OutputKeys.INDENT, "yes");
-            TRANSFORMER.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        Transformer transformer = TRANSFORMER.get();
+        if (transformer == null) {
+            synchronized (TRANSFORMER_FACTORY) {
+                transformer = TRANSFORMER_FACTORY.newTransformer();
+            }
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            TRANSFORMER.set(transformer);
         }
-        return TRANSFORMER;
+        return transformer;
     }
 
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Runs tasks concurrently as soon as the tasks they depend on have completed.
+// Only the calling thread submits and waits, so no pool thread is ever blocked
+// by another task. When a task fails, the tasks depending on it are skipped,
+// independent tasks still run to completion and the first failure is rethrown.
+public class TaskGraph {
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private enum State {PENDING, RUNNING, DONE, FAILED, SKIPPED}
+
+    private final Logger log = LoggerFactory.getLogger(TaskGraph.class);
+    private final AsyncTaskExecutor executor;
+    private final List<Node> nodes = new ArrayList<>();
+
+    public TaskGraph(AsyncTaskExecutor executor) {
+        this.executor = executor;
+    }
+
+    // Dependencies have to be added before their dependents, which rules out cycles.
+    public Node add(String name, Task task, Node... dependencies) {
+        for (Node dependency : dependencies) {
+            if (!nodes.contains(dependency)) {
+                throw new IllegalArgumentException("Unknown dependency '" + dependency.name + "' of task '" + name + "'");
+            }
+        }
+        Node node = new Node(name, task, Arrays.asList(dependencies));
+        nodes.add(node);
+        return node;
+    }
+
+    public void run() throws Exception {
+        BlockingQueue<Node> completed = new LinkedBlockingQueue<>();
+        Set<Node> pending = new LinkedHashSet<>(nodes);
+        List<Future<?>> futures = new ArrayList<>(nodes.size());
+        Exception failure = null;
+        int running = 0;
+        try {
+            while (true) {
+                for (Iterator<Node> it = pending.iterator(); it.hasNext(); ) {
+                    Node node = it.next();
+                    Node failedDependency = node.failedDependency();
+                    if (failedDependency != null) {
+                        log.warn("Skipping '{}', because '{}' did not complete.", node.name, failedDependency.name);
+                        node.state = State.SKIPPED;
+                        it.remove();
+                    } else if (node.isReady()) {
+                        node.state = State.RUNNING;
+                        it.remove();
+                        running++;
+                        futures.add(executor.submit(node.runnable(completed)));
+                    }
+                }
+                if (running == 0) break;
+
+                Node node = completed.take();
+                running--;
+                if (node.state == State.FAILED) {
+                    log.error("Task '{}' failed: {}", node.name, node.failure.getMessage());
+                    if (failure == null) failure = node.failure;
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+        if (failure != null) throw failure;
+    }
+
+    public static class Node {
+        private final String name;
+        private final Task task;
+        private final List<Node> dependencies;
+        // written by the worker, read by the submitting thread
+        private volatile State state = State.PENDING;
+        private Exception failure;
+
+        private Node(String name, Task task, List<Node> dependencies) {
+            this.name = name;
+            this.task = task;
+            this.dependencies = dependencies;
+        }
+
+        private boolean isReady() {
+            for (Node dependency : dependencies) {
+                if (dependency.state != State.DONE) return false;
+            }
+            return true;
+        }
+
+        private Node failedDependency() {
+            for (Node dependency : dependencies) {
+                if ((dependency.state == State.FAILED) || (dependency.state == State.SKIPPED)) return dependency;
+            }
+            return null;
+        }
+
+        private Runnable runnable(final BlockingQueue<Node> completed) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                        state = State.DONE;
+                    } catch (Throwable t) {
+                        failure = (t instanceof Exception) ? (Exception) t : new ExecutionException(t);
+                        state = State.FAILED;
+                    } finally {
+                        completed.add(Node.this);
+                    }
+                }
+            };
+        }
+    }
+
+}
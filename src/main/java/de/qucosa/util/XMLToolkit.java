@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.util;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.xpath.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// JAXP factories are created once. StAX factories are safe to share once configured,
+// while parsers are kept per thread and reset before reuse.
+// Compiled XPath expressions are cached by expression string in pooled XPath objects,
+// since thread locals of container threads would keep their classes loaded.
+// Use XPath variables like $id instead of building expression strings from values.
+public class XMLToolkit {
+
+    private final DocumentBuilderFactory documentBuilderFactory;
+    private final XMLInputFactory xmlInputFactory;
+    private final XMLOutputFactory xmlOutputFactory;
+    private final XMLEventFactory xmlEventFactory;
+    private final NamespaceContext namespaceContext;
+
+    private final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            try {
+                synchronized (documentBuilderFactory) {
+                    return documentBuilderFactory.newDocumentBuilder();
+                }
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException("Cannot create XML parser", e);
+            }
+        }
+    };
+
+    private final Queue<CompiledXPathExpressions> compiledXPathExpressions = new ConcurrentLinkedQueue<>();
+
+    public XMLToolkit() {
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        xmlInputFactory = XMLInputFactory.newFactory();
+        xmlOutputFactory = XMLOutputFactory.newFactory();
+        xmlEventFactory = XMLEventFactory.newFactory();
+
+        Map<String, String> namespaces = new HashMap<>();
+        namespaces.put("dc", "http://purl.org/dc/elements/1.1/");
+        namespaceContext = new MapNamespaceContext(namespaces);
+    }
+
+    public DocumentBuilder documentBuilder() {
+        DocumentBuilder documentBuilder = documentBuilders.get();
+        documentBuilder.reset();
+        return documentBuilder;
+    }
+
+    public String evaluate(String expression, Object item) throws XPathExpressionException {
+        return (String) evaluate(expression, item, XPathConstants.STRING);
+    }
+
+    public Object evaluate(String expression, Object item, QName returnType) throws XPathExpressionException {
+        return evaluate(expression, item, returnType, Collections.<String, Object>emptyMap());
+    }
+
+    public Object evaluate(String expression, Object item, QName returnType, Map<String, ?> variables)
+            throws XPathExpressionException {
+        CompiledXPathExpressions compiled = compiledXPathExpressions.poll();
+        if (compiled == null) compiled = new CompiledXPathExpressions(namespaceContext);
+        try {
+            return compiled.evaluate(expression, item, returnType, variables);
+        } finally {
+            compiledXPathExpressions.offer(compiled);
+        }
+    }
+
+    public XMLInputFactory xmlInputFactory() {
+        return xmlInputFactory;
+    }
+
+    public XMLOutputFactory xmlOutputFactory() {
+        return xmlOutputFactory;
+    }
+
+    public XMLEventFactory xmlEventFactory() {
+        return xmlEventFactory;
+    }
+
+    private static class CompiledXPathExpressions implements XPathVariableResolver {
+        private static final int MAX_CACHED_EXPRESSIONS = 256;
+
+        private final XPath xPath;
+        private final Map<String, XPathExpression> expressions = new HashMap<>();
+        private Map<String, ?> variables = Collections.emptyMap();
+
+        CompiledXPathExpressions(NamespaceContext namespaceContext) {
+            xPath = XPathFactory.newInstance().newXPath();
+            xPath.setNamespaceContext(namespaceContext);
+            xPath.setXPathVariableResolver(this);
+        }
+
+        XPathExpression get(String expression) throws XPathExpressionException {
+            XPathExpression compiled = expressions.get(expression);
+            if (compiled == null) {
+                compiled = xPath.compile(expression);
+                if (expressions.size() < MAX_CACHED_EXPRESSIONS) expressions.put(expression, compiled);
+            }
+            return compiled;
+        }
+
+        Object evaluate(String expression, Object item, QName returnType, Map<String, ?> variables)
+                throws XPathExpressionException {
+            XPathExpression compiled = get(expression);
+            Map<String, ?> previous = this.variables;
+            this.variables = variables;
+            try {
+                return compiled.evaluate(item, returnType);
+            } finally {
+                this.variables = previous;
+            }
+        }
+
+        @Override
+        public Object resolveVariable(QName variableName) {
+            return variables.get(variableName.getLocalPart());
+        }
+    }
+
+    private static class MapNamespaceContext implements NamespaceContext {
+        private final Map<String, String> namespaces;
+
+        MapNamespaceContext(Map<String, String> namespaces) {
+            this.namespaces = namespaces;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            if (prefix == null) throw new IllegalArgumentException("Prefix must not be null");
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix)) return XMLConstants.XML_NS_URI;
+            String uri = namespaces.get(prefix);
+            return (uri == null) ? XMLConstants.NULL_NS_URI : uri;
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            for (Map.Entry<String, String> e : namespaces.entrySet()) {
+                if (e.getValue().equals(namespaceURI)) return e.getKey();
+            }
+            return null;
+        }
+
+        @Override
+        public Iterator getPrefixes(String namespaceURI) {
+            String prefix = getPrefix(namespaceURI);
+            return (prefix == null) ? Collections.emptyIterator() : Collections.singletonList(prefix).iterator();
+        }
+    }
+
+}
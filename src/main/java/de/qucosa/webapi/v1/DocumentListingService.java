@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+import com.yourmediashelf.fedora.client.FedoraClientException;
+import de.qucosa.fedora.FedoraRepository;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.index.query.QueryBuilders.*;
+
+public class DocumentListingService {
+
+    public static final String SOURCE_FEDORA = "fedora";
+    public static final String SOURCE_ELASTICSEARCH = "elasticsearch";
+    private static final String PID_PATTERN = "^qucosa:";
+    private static final String PID_PREFIX = "qucosa:";
+    private static final int SCROLL_SIZE = 500;
+    private static final TimeValue SCROLL_KEEP_ALIVE = new TimeValue(60, TimeUnit.SECONDS);
+
+    private final Logger log = LoggerFactory.getLogger(DocumentListingService.class);
+    private final String source;
+    private final Client elasticSearchClient;
+
+    public DocumentListingService(String source, Client elasticSearchClient) {
+        if (!SOURCE_FEDORA.equals(source) && !SOURCE_ELASTICSEARCH.equals(source)) {
+            throw new IllegalArgumentException("Unknown document listing source: " + source);
+        }
+        if (SOURCE_ELASTICSEARCH.equals(source) && (elasticSearchClient == null)) {
+            throw new IllegalArgumentException("Document listing from Elasticsearch requires a client");
+        }
+        this.source = source;
+        this.elasticSearchClient = elasticSearchClient;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public <E extends Exception> void streamPIDs(FedoraRepository fedoraRepository, int offset, int limit,
+                                                 FedoraRepository.PIDHandler<E> handler)
+            throws FedoraClientException, IOException, E {
+        if (SOURCE_ELASTICSEARCH.equals(source)) {
+            streamPIDsFromElasticSearch(offset, limit, handler);
+        } else {
+            fedoraRepository.streamPIDsByPattern(PID_PATTERN, offset, limit, handler);
+        }
+    }
+
+    private <E extends Exception> void streamPIDsFromElasticSearch(int offset, int limit,
+                                                                   FedoraRepository.PIDHandler<E> handler) throws E {
+        // the same documents as the PID pattern of the Fedora listing
+        QueryBuilder query = prefixQuery("PID", PID_PREFIX);
+        SearchRequestBuilder request = elasticSearchClient
+                .prepareSearch("fedora")
+                .setTypes("object")
+                .setQuery(query)
+                .addField("PID");
+
+        if (limit >= 0) {
+            // a single sorted page
+            SearchResponse response = request
+                    .addSort("PID", SortOrder.ASC)
+                    .setFrom(offset)
+                    .setSize(limit)
+                    .execute().actionGet();
+            handleHits(response.getHits().getHits(), 0, handler);
+            return;
+        }
+
+        if (offset > 0) {
+            // stable order is needed to skip, scan cannot sort
+            request.addSort("PID", SortOrder.ASC).setSize(SCROLL_SIZE);
+        } else {
+            request.setSearchType(SearchType.SCAN).setSize(SCROLL_SIZE);
+        }
+        SearchResponse response = request.setScroll(SCROLL_KEEP_ALIVE).execute().actionGet();
+        String scrollId = response.getScrollId();
+        try {
+            int toSkip = offset;
+            SearchHit[] hits = response.getHits().getHits();
+            // scan requests return their first hits with the first scroll
+            while (true) {
+                toSkip = handleHits(hits, toSkip, handler);
+                response = elasticSearchClient.prepareSearchScroll(scrollId)
+                        .setScroll(SCROLL_KEEP_ALIVE)
+                        .execute().actionGet();
+                scrollId = response.getScrollId();
+                hits = response.getHits().getHits();
+                if (hits.length == 0) break;
+            }
+        } finally {
+            clearScroll(scrollId);
+        }
+    }
+
+    // the search contexts would otherwise be held until the keep alive expires
+    private void clearScroll(String scrollId) {
+        if (scrollId == null) return;
+        try {
+            elasticSearchClient.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+        } catch (Exception e) {
+            log.warn("Cannot clear scroll: {}", e.getMessage());
+        }
+    }
+
+    private <E extends Exception> int handleHits(SearchHit[] hits, int toSkip, FedoraRepository.PIDHandler<E> handler)
+            throws E {
+        for (SearchHit hit : hits) {
+            if (toSkip > 0) {
+                toSkip--;
+                continue;
+            }
+            SearchHitField pidField = hit.field("PID");
+            if ((pidField != null) && (pidField.getValue() != null)) {
+                handler.handle(String.valueOf(pidField.getValue()));
+            }
+        }
+        return toSkip;
+    }
+
+}
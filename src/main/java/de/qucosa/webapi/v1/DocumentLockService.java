@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.qucosa.webapi.v1;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serializes modifications of the same document within this process. Documents are
+// mapped onto a fixed number of lock stripes, so unrelated documents rarely wait for
+// each other and the memory used does not grow with the number of documents.
+@ManagedResource(objectName = "de.qucosa:type=DocumentLockService", description = "Per-document locks serializing modifications")
+public class DocumentLockService {
+
+    private final Logger log = LoggerFactory.getLogger(DocumentLockService.class);
+    private final ReentrantLock[] stripes;
+    private final long timeoutMillis;
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong contentions = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public DocumentLockService(int stripeCount, long timeoutMillis) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Stripe count must be at least 1");
+        }
+        // round up to a power of two, so that a stripe can be selected by masking
+        int size = Integer.highestOneBit(stripeCount);
+        if (size < stripeCount) size <<= 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) stripes[i] = new ReentrantLock();
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public Lock lock(String pid) throws ResourceConflictException, InterruptedException {
+        ReentrantLock lock = stripes[stripeOf(pid)];
+        if (lock.tryLock()) {
+            acquisitions.incrementAndGet();
+            return lock;
+        }
+
+        contentions.incrementAndGet();
+        long start = System.nanoTime();
+        boolean acquired = lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        updateMaxWait(waited);
+
+        if (!acquired) {
+            timeouts.incrementAndGet();
+            log.warn("Timed out after {} ms waiting for lock on {}", timeoutMillis, pid);
+            throw new ResourceConflictException("Document " + pid + " is being modified. Try again later.");
+        }
+        acquisitions.incrementAndGet();
+        log.debug("Waited {} ms for lock on {}", TimeUnit.NANOSECONDS.toMillis(waited), pid);
+        return lock;
+    }
+
+    @ManagedAttribute(description = "Locks acquired")
+    public long getAcquisitionCount() {
+        return acquisitions.get();
+    }
+
+    @ManagedAttribute(description = "Lock requests that had to wait")
+    public long getContentionCount() {
+        return contentions.get();
+    }
+
+    @ManagedAttribute(description = "Lock requests that timed out")
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    @ManagedAttribute(description = "Total time spent waiting for locks")
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    @ManagedAttribute(description = "Longest wait for a lock")
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DocumentLockService[stripes=%d, acquisitions=%d, contentions=%d, timeouts=%d, waitMillis=%d, maxWaitMillis=%d]",
+                stripes.length, getAcquisitionCount(), getContentionCount(), getTimeoutCount(),
+                getTotalWaitMillis(), getMaxWaitMillis());
+    }
+
+    int stripeOf(String pid) {
+        // let the high bits of the hash influence the stripe as well
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & (stripes.length - 1);
+    }
+
+    private void updateMaxWait(long waited) {
+        long max;
+        do {
+            max = maxWaitNanos.get();
+        } while ((waited > max) && !maxWaitNanos.compareAndSet(max, waited));
+    }
+
+}
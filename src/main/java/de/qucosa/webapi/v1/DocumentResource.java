@@ -20,11 +20,15 @@ package de.qucosa.webapi.v1;
 import com.yourmediashelf.fedora.client.FedoraClientException;
 import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
 import de.qucosa.fedora.FedoraObjectBuilder;
+import de.qucosa.fedora.FedoraObjectBuilderException;
 import de.qucosa.fedora.FedoraRepository;
 import de.qucosa.urn.DnbUrnURIBuilder;
 import de.qucosa.urn.URNConfiguration;
 import de.qucosa.urn.URNConfigurationException;
+import de.qucosa.util.DOMFingerprint;
 import de.qucosa.util.DOMSerializer;
+import de.qucosa.util.TaskGraph;
+import de.qucosa.util.XMLToolkit;
 import de.qucosa.util.Tuple;
 import fedora.fedoraSystemDef.foxml.DigitalObjectDocument;
 import org.apache.commons.io.IOUtils;
@@ -32,7 +36,11 @@ import org.apache.xmlbeans.XmlOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Scope;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -40,25 +48,25 @@ import org.w3c.dom.*;
 import org.xml.sax.SAXException;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.xml.XMLConstants;
-import javax.xml.namespace.NamespaceContext;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.*;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.*;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 
 @RestController
 @Scope("request")
@@ -71,69 +79,61 @@ class DocumentResource {
     public static final String DSID_QUCOSA_XML = "QUCOSA-XML";
     public static final String MIMETYPE_QUCOSA_V1_XML = "application/vnd.slub.qucosa-v1+xml";
     public static final String DSID_QUCOSA_ATT = "QUCOSA-ATT-";
-    private static final XPathFactory xPathFactory;
-    private static final XPath xPath;
-
-    static {
-        xPathFactory = XPathFactory.newInstance();
-        xPath = xPathFactory.newXPath();
-        xPath.setNamespaceContext(new NamespaceContext() {
-            @Override
-            public String getNamespaceURI(String prefix) {
-                switch (prefix) {
-                    case "ns":
-                        return "http://purl.org/dc/elements/1.1/";
-                    default:
-                        return XMLConstants.NULL_NS_URI;
-                }
-            }
-
-            @Override
-            public String getPrefix(String namespaceURI) {
-                return XMLConstants.DEFAULT_NS_PREFIX;
-            }
-
-            @Override
-            public Iterator getPrefixes(String namespaceURI) {
-                return new ArrayList() {{
-                    add(XMLConstants.XML_NS_PREFIX);
-                }}.iterator();
-            }
-        });
-    }
+    public static final int MAX_BULK_IDS = 1000;
+    private static final int BULK_FETCH_WINDOW = 16;
+    private static final int BATCH_INGEST_WINDOW = 16;
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+    private static final int MAX_INGEST_ATTEMPTS = 3;
+    private static final Set<String> PATCHABLE_FILE_FIELDS =
+            new HashSet<>(Arrays.asList("Label", "PathName", "FrontdoorVisible"));
 
     final private Logger log = LoggerFactory.getLogger(DocumentResource.class);
-    final private DocumentBuilder documentBuilder;
-    final private Transformer transformer;
+    final private XMLToolkit xmlToolkit;
     final private XMLOutputFactory xmlOutputFactory;
+    final private XMLInputFactory xmlInputFactory;
     final private FedoraRepository fedoraRepository;
     @Autowired
     private HttpServletRequest httpServletRequest;
 
     private URNConfiguration urnConfiguration;
     private FileHandlingService fileHandlingService;
+    private RenderedDocumentCache documentCache;
+    private AsyncTaskExecutor documentFetchExecutor;
+    private DocumentListingService documentListingService;
+    private IngestJobService ingestJobService;
+    private AsyncTaskExecutor attachmentExecutor;
+    private AsyncTaskExecutor batchIngestExecutor;
+    private DocumentLockService documentLockService;
+    private AsyncTaskExecutor updateExecutor;
 
     @Autowired
     public DocumentResource(
             FedoraRepository fedoraRepository,
             URNConfiguration urnConfiguration,
-            FileHandlingService fileHandlingService)
-            throws ParserConfigurationException, TransformerConfigurationException {
+            FileHandlingService fileHandlingService,
+            RenderedDocumentCache documentCache,
+            @Qualifier("documentFetchExecutor") AsyncTaskExecutor documentFetchExecutor,
+            XMLToolkit xmlToolkit,
+            DocumentListingService documentListingService,
+            IngestJobService ingestJobService,
+            @Qualifier("attachmentExecutor") AsyncTaskExecutor attachmentExecutor,
+            @Qualifier("batchIngestExecutor") AsyncTaskExecutor batchIngestExecutor,
+            DocumentLockService documentLockService,
+            @Qualifier("updateExecutor") AsyncTaskExecutor updateExecutor) {
         this.fedoraRepository = fedoraRepository;
         this.urnConfiguration = urnConfiguration;
         this.fileHandlingService = fileHandlingService;
-
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        documentBuilderFactory.setNamespaceAware(true);
-        documentBuilder = documentBuilderFactory.newDocumentBuilder();
-
-        transformer = TransformerFactory.newInstance().newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-
-        xmlOutputFactory = XMLOutputFactory.newFactory();
+        this.documentCache = documentCache;
+        this.documentFetchExecutor = documentFetchExecutor;
+        this.xmlToolkit = xmlToolkit;
+        this.documentListingService = documentListingService;
+        this.ingestJobService = ingestJobService;
+        this.attachmentExecutor = attachmentExecutor;
+        this.batchIngestExecutor = batchIngestExecutor;
+        this.documentLockService = documentLockService;
+        this.updateExecutor = updateExecutor;
+        this.xmlOutputFactory = xmlToolkit.xmlOutputFactory();
+        this.xmlInputFactory = xmlToolkit.xmlInputFactory();
     }
 
     private static String ats(String lastName, String firstName, String title) {
@@ -156,61 +156,250 @@ class DocumentResource {
     }
 
     @RequestMapping(value = "/document", method = RequestMethod.GET)
-    public ResponseEntity<String> listAll() throws IOException, FedoraClientException, XMLStreamException {
-        List<String> pids = fedoraRepository.getPIDsByPattern("^qucosa:");
+    public void listAll(
+            @RequestParam(value = "offset", required = false, defaultValue = "0") int offset,
+            @RequestParam(value = "limit", required = false, defaultValue = "-1") int limit,
+            HttpServletResponse response) throws IOException, FedoraClientException, XMLStreamException {
+        if ((offset < 0) || (limit < -1)) {
+            writeErrorResponse(response, "Offset and limit must not be negative.", HttpStatus.BAD_REQUEST);
+            return;
+        }
 
-        StringWriter sw = new StringWriter();
-        XMLStreamWriter w = xmlOutputFactory.createXMLStreamWriter(sw);
-        w.writeStartDocument("UTF-8", "1.0");
-        w.writeStartElement("Opus");
-        w.writeAttribute("version", "2.0");
-        w.writeStartElement("DocumentList");
-        w.writeNamespace("xlink", "http://www.w3.org/1999/xlink");
-        for (String pid : pids) {
-            String nr = pid.substring(pid.lastIndexOf(':') + 1);
-            String href = getHrefLink(nr);
-            w.writeEmptyElement("Document");
-            w.writeAttribute("xlink:href", href);
-            w.writeAttribute("xlink:nr", nr);
-            w.writeAttribute("xlink:type", "simple");
+        DocumentListWriter list = new DocumentListWriter(response, getHrefLink(""));
+        try {
+            documentListingService.streamPIDs(fedoraRepository, offset, limit, list);
+        } catch (Exception e) {
+            if (!list.isStarted()) throw e;
+            // the status has been sent with the first PID, so the failure can only be reported in the body
+            log.error("Listing documents failed after {} entries: {}", list.getCount(), e.getMessage());
+            list.writeError(e.getMessage());
+        }
+        list.finish();
+    }
+
+    @RequestMapping(value = "/document", method = RequestMethod.GET, params = "ids")
+    public void getDocuments(@RequestParam("ids") String ids, HttpServletResponse response)
+            throws IOException, XMLStreamException {
+        List<String> qucosaIDs = parseIdList(ids);
+        if (qucosaIDs.isEmpty() || qucosaIDs.size() > MAX_BULK_IDS) {
+            writeErrorResponse(response,
+                    "Expected between 1 and " + MAX_BULK_IDS + " document ids.", HttpStatus.BAD_REQUEST);
+            return;
+        }
+
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(negotiateContentType());
+        OutputStream out = response.getOutputStream();
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Opus version=\"2.0\">".getBytes("UTF-8"));
+
+        // fetch ahead in a bounded window, but write documents in the requested order
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        try {
+            for (final String qucosaID : qucosaIDs) {
+                pending.add(documentFetchExecutor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return fetchDocumentFragment(qucosaID);
+                    }
+                }));
+                if (pending.size() >= BULK_FETCH_WINDOW) {
+                    out.write(awaitFragment(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.write(awaitFragment(pending.poll()));
+            }
+        } finally {
+            for (Future<byte[]> f : pending) f.cancel(true);
         }
-        w.writeEndElement();
-        w.writeEndElement();
-        w.writeEndDocument();
-        w.flush();
 
-        return new ResponseEntity<>(sw.toString(), HttpStatus.OK);
+        out.write("</Opus>".getBytes("UTF-8"));
+        out.flush();
     }
 
     @RequestMapping(value = "/document/{qucosaID}", method = RequestMethod.GET)
-    public ResponseEntity<String> getDocument(@PathVariable String qucosaID) throws FedoraClientException, IOException, SAXException, TransformerException {
+    public void getDocument(@PathVariable String qucosaID, HttpServletResponse response)
+            throws FedoraClientException, IOException, XMLStreamException {
         String pid = "qucosa:".concat(qucosaID);
+
+        // the rendering also depends on the datastreams, which the entity tag does not cover
+        long cacheGeneration = documentCache.generation(pid);
+        DatastreamProfile profile = fedoraRepository.getDatastreamProfile(pid, DSID_QUCOSA_XML);
+        String etag = getEntityTag(profile);
+        long lastModified = getLastModified(profile);
+        if (etag != null) response.setHeader("ETag", etag);
+        if (lastModified >= 0) response.setDateHeader("Last-Modified", lastModified);
+        if (isNotModified(etag, lastModified)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(negotiateContentType());
+
+        byte[] cached = documentCache.get(pid, etag);
+        if (cached != null) {
+            response.setContentLength(cached.length);
+            response.getOutputStream().write(cached);
+            return;
+        }
+
         InputStream dsContent = fedoraRepository.getDatastreamContent(pid, DSID_QUCOSA_XML);
-        Document doc = documentBuilder.parse(dsContent);
-        doc.normalizeDocument();
-        removeEmtpyFields(doc);
-        removeFileElementsWithoutCorrespondingDatastream(pid, doc);
-        return new ResponseEntity<>(DOMSerializer.toString(doc), HttpStatus.OK);
+        try {
+            OutputStream out = documentCache.capture(response.getOutputStream());
+            new OpusDocumentStreamFilter(xmlToolkit, fedoraRepository, pid)
+                    .filter(dsContent, out);
+            documentCache.putCaptured(pid, etag, cacheGeneration, out);
+        } finally {
+            IOUtils.closeQuietly(dsContent);
+        }
     }
 
     @RequestMapping(value = "/document", method = RequestMethod.POST,
             consumes = {"text/xml", "application/xml", MIMETYPE_QUCOSA_V1_XML})
     public ResponseEntity<String> addDocument(
-            @RequestParam(value = "nis1", required = false) String libraryNetworkAbbreviation,
-            @RequestParam(value = "nis2", required = false) String libraryIdentifier,
-            @RequestParam(value = "niss", required = false) String prefix,
+            @RequestParam(value = "nis1", required = false) final String libraryNetworkAbbreviation,
+            @RequestParam(value = "nis2", required = false) final String libraryIdentifier,
+            @RequestParam(value = "niss", required = false) final String prefix,
+            @RequestParam(value = "async", required = false, defaultValue = "false") boolean async,
             @RequestBody String body) throws Exception {
 
-        Document qucosaDocument = documentBuilder.parse(IOUtils.toInputStream(body));
+        Document qucosaDocument = xmlToolkit.documentBuilder().parse(IOUtils.toInputStream(body));
+        Document original = originalOf(qucosaDocument);
+        FedoraObjectBuilder fob = prepareIngest(qucosaDocument, libraryNetworkAbbreviation, libraryIdentifier, prefix);
+        String pid = fob.pid();
+
+        if (async) {
+            // rejected right away if possible, the ingest job checks again
+            if (original == null) assertPidIsNotUsed(pid);
+            final Document jobOriginal = original;
+            final Document jobDocument = qucosaDocument;
+            final FedoraObjectBuilder jobBuilder = fob;
+            IngestJob job;
+            try {
+                job = ingestJobService.submit(pid, new IngestJobService.IngestWork() {
+                    @Override
+                    public void run(IngestJob job) throws Exception {
+                        ingestNewDocument(jobOriginal, jobDocument, jobBuilder,
+                                libraryNetworkAbbreviation, libraryIdentifier, prefix, job);
+                    }
+                });
+            } catch (TaskRejectedException e) {
+                return errorResponse("Too many pending ingest jobs. Try again later.", HttpStatus.SERVICE_UNAVAILABLE);
+            }
+            HttpHeaders headers = new HttpHeaders();
+            headers.setLocation(URI.create(getHrefLink("job/" + job.getId())));
+            return new ResponseEntity<>(getIngestJobResponse(job), headers, HttpStatus.ACCEPTED);
+        }
+
+        String id = ingestNewDocument(original, qucosaDocument, fob,
+                libraryNetworkAbbreviation, libraryIdentifier, prefix, null);
+        return new ResponseEntity<>(getDocumentCreatedResponse(id), HttpStatus.CREATED);
+    }
+
+    @RequestMapping(value = "/document/batch", method = RequestMethod.POST,
+            consumes = {"text/xml", "application/xml", MIMETYPE_QUCOSA_V1_XML})
+    public void addDocuments(
+            @RequestParam(value = "nis1", required = false) final String libraryNetworkAbbreviation,
+            @RequestParam(value = "nis2", required = false) final String libraryIdentifier,
+            @RequestParam(value = "niss", required = false) final String prefix,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException, XMLStreamException {
+
+        XMLEventReader r = xmlInputFactory.createXMLEventReader(request.getInputStream());
+        StartElement batchElement;
+        try {
+            batchElement = nextStartElement(r);
+        } catch (XMLStreamException e) {
+            writeErrorResponse(response, "Cannot parse batch: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+            return;
+        }
+        if (batchElement == null) {
+            writeErrorResponse(response, "Batch contains no documents.", HttpStatus.BAD_REQUEST);
+            return;
+        }
+
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(negotiateContentType());
+        XMLStreamWriter w = xmlOutputFactory.createXMLStreamWriter(response.getOutputStream(), "UTF-8");
+        w.writeStartDocument("UTF-8", "1.0");
+        w.writeStartElement("Opus");
+        w.writeAttribute("version", "2.0");
+        w.writeStartElement("BatchResult");
+        w.writeNamespace(XLINK_NAMESPACE_PREFIX, XLINK_NAMESPACE);
+        w.flush();
+
+        // Documents are read one at a time and ingested ahead in a bounded window,
+        // while results are written in submission order.
+        final String hrefPrefix = getHrefLink("");
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        int index = 0;
+        int written = 0;
+        try {
+            byte[] content;
+            while ((content = nextDocument(r, batchElement)) != null) {
+                final byte[] documentContent = content;
+                pending.add(batchIngestExecutor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        Document qucosaDocument = xmlToolkit.documentBuilder().parse(new ByteArrayInputStream(documentContent));
+                        Document original = originalOf(qucosaDocument);
+                        FedoraObjectBuilder fob = prepareIngest(qucosaDocument,
+                                libraryNetworkAbbreviation, libraryIdentifier, prefix);
+                        return ingestNewDocument(original, qucosaDocument, fob,
+                                libraryNetworkAbbreviation, libraryIdentifier, prefix, null);
+                    }
+                }));
+                index++;
+                if (pending.size() >= BATCH_INGEST_WINDOW) {
+                    writeBatchResult(w, ++written, pending.poll(), hrefPrefix);
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeBatchResult(w, ++written, pending.poll(), hrefPrefix);
+            }
+        } catch (XMLStreamException e) {
+            // documents submitted so far are still reported, the rest of the batch is not read
+            while (!pending.isEmpty()) {
+                writeBatchResult(w, ++written, pending.poll(), hrefPrefix);
+            }
+            log.error("Cannot parse batch after document {}: {}", index, e.getMessage());
+            w.writeEmptyElement("Error");
+            w.writeAttribute("index", String.valueOf(index + 1));
+            w.writeAttribute("status", String.valueOf(HttpStatus.BAD_REQUEST.value()));
+            w.writeAttribute("message", "Cannot parse batch: " + e.getMessage());
+        } finally {
+            for (Future<String> f : pending) f.cancel(true);
+        }
+
+        w.writeEndElement();
+        w.writeEndElement();
+        w.writeEndDocument();
+        w.flush();
+        w.close();
+    }
+
+    @RequestMapping(value = "/document/job/{jobId}", method = RequestMethod.GET)
+    public ResponseEntity<String> getIngestJob(@PathVariable String jobId) throws XMLStreamException {
+        IngestJob job = ingestJobService.get(jobId);
+        if (job == null) {
+            return errorResponse("Ingest job " + jobId + " not found.", HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(getIngestJobResponse(job), HttpStatus.OK);
+    }
+
+    private FedoraObjectBuilder prepareIngest(Document qucosaDocument, String libraryNetworkAbbreviation,
+                                              String libraryIdentifier, String prefix) throws Exception {
         assertBasicDocumentProperties(qucosaDocument);
         assertFileElementProperties(qucosaDocument);
 
         FedoraObjectBuilder fob = buildDocument(qucosaDocument);
 
+        // A PID given by the document gets checked under the document's lock when
+        // ingesting. A minted one is not checked, Fedora refuses the ingest if it is taken.
         String pid;
         if (hasPID(fob)) {
             pid = fob.pid();
-            assertPidIsNotUsed(pid);
         } else {
             pid = fedoraRepository.mintPid("qucosa");
             fob.pid(pid);
@@ -231,37 +420,111 @@ class DocumentResource {
                     "Qucosa document has no IdentifierURN but new URN cannot be generated: " + uex.getMessage(),
                     qucosaDocument);
         }
+        return fob;
+    }
+
+    // Without an original document to prepare once more, the PID came with the
+    // document and a document using it already is a conflict.
+    private Document originalOf(Document qucosaDocument) throws XPathExpressionException {
+        return hasId(qucosaDocument) ? null : (Document) qucosaDocument.cloneNode(true);
+    }
+
+    // PIDs are reserved in blocks, so a document that brought its own PID may have
+    // taken a minted one meanwhile. The document then gets the next PID instead.
+    private String ingestNewDocument(Document original, Document qucosaDocument, FedoraObjectBuilder fob,
+                                     String libraryNetworkAbbreviation, String libraryIdentifier, String prefix,
+                                     IngestJob job) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            String pid = fob.pid();
+            String id = pid.substring("qucosa:".length());
+            try {
+                ingestDocument(pid, id, qucosaDocument, fob, (original == null), job);
+                return id;
+            } catch (PidInUseException e) {
+                if ((original == null) || (attempt >= MAX_INGEST_ATTEMPTS)) throw e;
+                log.warn("Discarding PID '{}', it is already in use.", pid);
+            }
+            qucosaDocument = (Document) original.cloneNode(true);
+            fob = prepareIngest(qucosaDocument, libraryNetworkAbbreviation, libraryIdentifier, prefix);
+            if (job != null) job.assignPid(fob.pid());
+        }
+    }
+
+    private void ingestDocument(String pid, String id, Document qucosaDocument, FedoraObjectBuilder fob,
+                                boolean checkPid, IngestJob job) throws Exception {
+        // held from the check through the ingest, so that two documents
+        // with the same PID cannot both pass the check
+        Lock lock = documentLockService.lock(pid);
+        try {
+            if (checkPid) assertPidIsNotUsed(pid);
+            ingestLockedDocument(pid, id, qucosaDocument, fob, job);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        DigitalObjectDocument dod = fob.build();
+    private void ingestLockedDocument(String pid, String id, Document qucosaDocument, FedoraObjectBuilder fob,
+                                      IngestJob job) throws Exception {
+        // Attachments are placed before ingest and declared in the FOXML,
+        // so the complete object gets created with a single request.
+        if (job != null) job.step("ATTACHMENTS");
+        List<AttachmentTask> attachmentTasks;
+        try {
+            attachmentTasks = handleFileElements(pid, qucosaDocument, fob);
+        } catch (FileAlreadyExistsException e) {
+            // files of another object are in place already
+            throw new PidInUseException(pid);
+        }
+
+        DigitalObjectDocument dod;
+        try {
+            dod = fob.build();
+        } catch (Exception ex) {
+            revertAttachments(attachmentTasks);
+            throw ex;
+        }
         if (log.isDebugEnabled()) {
-            log.debug("Ingest FOXML (there might be subsequent changes to datastreams):");
+            log.debug("Ingest FOXML:");
             debugDump(dod);
         }
 
         try {
+            if (job != null) job.step("INGEST");
             fedoraRepository.ingest(dod);
-            handleFilesAndUpdateDatastreams(qucosaDocument, pid);
+            if (job != null) job.step("HTACCESS");
             writeHtAccessFile(id, qucosaDocument);
         } catch (Exception ex) {
+            if (isPidInUse(ex)) {
+                // The object is not ours to purge. The placed files are, since
+                // placing them for an ingest never replaces existing ones.
+                log.warn("Cannot ingest object with PID '{}', it already exists.", pid);
+                revertAttachments(attachmentTasks);
+                throw new PidInUseException(pid);
+            }
             log.error("Error ingesting object '{}' with PID '{}'. Rolling back ingest.", ex.getMessage(), pid);
             try {
                 fedoraRepository.purge(pid);
             } catch (FedoraClientException f) {
-                log.warn("Rollback of '{}' ingest failed: '{}'", pid, f.getMessage());
+                if (f.getStatus() != HttpStatus.NOT_FOUND.value()) {
+                    // the object may still reference the placed files
+                    log.warn("Rollback of '{}' ingest failed: '{}'", pid, f.getMessage());
+                    throw ex;
+                }
             }
+            revertAttachments(attachmentTasks);
             throw ex;
+        } finally {
+            documentCache.invalidate(pid);
         }
-
-        return new ResponseEntity<>(getDocumentCreatedResponse(id), HttpStatus.CREATED);
     }
 
     @RequestMapping(value = "/document/{qucosaID}", method = RequestMethod.PUT,
             consumes = {"text/xml", "application/xml", MIMETYPE_QUCOSA_V1_XML})
     public ResponseEntity<String> updateDocument(
             @PathVariable String qucosaID,
-            @RequestParam(value = "nis1", required = false) String libraryNetworkAbbreviation,
-            @RequestParam(value = "nis2", required = false) String libraryIdentifier,
-            @RequestParam(value = "niss", required = false) String prefix,
+            @RequestParam(value = "nis1", required = false) final String libraryNetworkAbbreviation,
+            @RequestParam(value = "nis2", required = false) final String libraryIdentifier,
+            @RequestParam(value = "niss", required = false) final String prefix,
             @RequestBody String body) throws Exception {
 
         String pid = "qucosa:" + qucosaID;
@@ -269,7 +532,7 @@ class DocumentResource {
             return errorResponse("Qucosa document " + qucosaID + " not found.", HttpStatus.NOT_FOUND);
         }
 
-        Document updateDocument = documentBuilder.parse(IOUtils.toInputStream(body));
+        final Document updateDocument = xmlToolkit.documentBuilder().parse(IOUtils.toInputStream(body));
         assertXPathNodeExists("/Opus[@version='2.0']", "No Opus node with version '2.0'.", updateDocument);
         assertXPathNodeExists("/Opus/Opus_Document", "No Opus_Document node found.", updateDocument);
 
@@ -278,64 +541,359 @@ class DocumentResource {
             log.debug(DOMSerializer.toString(updateDocument));
         }
 
-        Document qucosaDocument =
-                documentBuilder.parse(fedoraRepository.getDatastreamContent(
-                        pid, DSID_QUCOSA_XML));
-
-        List<FileUpdateOperation> fileUpdateOperations = new LinkedList<>();
-        Tuple<Collection<String>> updateOps = updateWith(qucosaDocument, updateDocument, fileUpdateOperations);
+        return modifyDocument(pid, qucosaID, new DocumentModification() {
+            @Override
+            public void apply(String pid, String qucosaID, String ifMatch) throws Exception {
+                mergeAndUpdate(pid, qucosaID, (Document) updateDocument.cloneNode(true), ifMatch,
+                        libraryNetworkAbbreviation, libraryIdentifier, prefix);
+            }
+        });
+    }
 
-        Set<String> updateFields = (Set<String>) updateOps.get(0);
-        assertBasicDocumentProperties(qucosaDocument);
+    @RequestMapping(value = "/document/{qucosaID}", method = RequestMethod.PATCH,
+            consumes = {"text/xml", "application/xml", MIMETYPE_QUCOSA_V1_XML})
+    public ResponseEntity<String> patchDocument(
+            @PathVariable String qucosaID,
+            @RequestBody String body) throws Exception {
 
-        List<String> newDcUrns = new LinkedList<>();
-        if (updateFields.contains("IdentifierUrn")) {
-            Set<String> updateSet = getIdentifierUrnValueSet(updateDocument);
-            newDcUrns.addAll(updateSet);
+        String pid = "qucosa:" + qucosaID;
+        if (!fedoraRepository.hasObject(pid)) {
+            return errorResponse("Qucosa document " + qucosaID + " not found.", HttpStatus.NOT_FOUND);
         }
-        if (!hasURN(qucosaDocument)) {
-            String urnnbn = generateUrnString(libraryNetworkAbbreviation, libraryIdentifier, prefix, qucosaID);
-            addIdentifierUrn(qucosaDocument, urnnbn);
-            newDcUrns.add(urnnbn);
+
+        Document patchDocument = xmlToolkit.documentBuilder().parse(IOUtils.toInputStream(body));
+        assertXPathNodeExists("/Opus[@version='2.0']", "No Opus node with version '2.0'.", patchDocument);
+        assertXPathNodeExists("/Opus/Patch", "No Patch node found.", patchDocument);
+        final List<PatchOperation> operations = parsePatchOperations(patchDocument);
+
+        return modifyDocument(pid, qucosaID, new DocumentModification() {
+            @Override
+            public void apply(String pid, String qucosaID, String ifMatch) throws Exception {
+                patchAndUpdate(pid, qucosaID, operations, ifMatch);
+            }
+        });
+    }
+
+    // Concurrent updates are detected when writing QUCOSA-XML. The modification is then
+    // repeated on the new stored version, unless the client asked for a specific one.
+    private ResponseEntity<String> modifyDocument(String pid, String qucosaID, DocumentModification modification)
+            throws Exception {
+        String ifMatch = (httpServletRequest == null) ? null : httpServletRequest.getHeader("If-Match");
+        Lock lock = documentLockService.lock(pid);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    modification.apply(pid, qucosaID, ifMatch);
+                    break;
+                } catch (ConcurrentUpdateException e) {
+                    if (ifMatch != null) {
+                        return errorResponse("Qucosa document " + qucosaID + " does not match the given entity tag.",
+                                HttpStatus.PRECONDITION_FAILED);
+                    }
+                    if (!e.isRetryable() || (attempt >= MAX_UPDATE_ATTEMPTS)) {
+                        log.warn("Giving up update of {} after {} concurrent modifications.", pid, attempt);
+                        return errorResponse("Qucosa document " + qucosaID + " was modified concurrently. Try again.",
+                                HttpStatus.CONFLICT);
+                    }
+                    log.debug("Concurrent modification of {}, repeating update.", pid);
+                }
+            }
+        } finally {
+            lock.unlock();
         }
-        String newTitle = null;
-        if (updateFields.contains("TitleMain")) {
-            newTitle = xPath.evaluate("/Opus/Opus_Document/TitleMain[1]/Value", qucosaDocument);
+
+        String okResponse = getDocumentUpdatedResponse();
+        return new ResponseEntity<>(okResponse, HttpStatus.OK);
+    }
+
+    private void mergeAndUpdate(String pid, String qucosaID, Document updateDocument, String ifMatch,
+                                String libraryNetworkAbbreviation, String libraryIdentifier, String prefix)
+            throws Exception {
+        boolean unchanged = false;
+        try {
+            DatastreamProfile profile = fedoraRepository.getDatastreamProfile(pid, DSID_QUCOSA_XML);
+            if (!matchesEntityTag(ifMatch, getEntityTag(profile))) {
+                throw new ConcurrentUpdateException(false);
+            }
+            long lastModified = getLastModified(profile);
+
+            Document qucosaDocument =
+                    xmlToolkit.documentBuilder().parse(fedoraRepository.getDatastreamContent(
+                            pid, DSID_QUCOSA_XML));
+            byte[] storedFingerprint = DOMFingerprint.of(qucosaDocument, "Opus_Document");
+
+            List<FileUpdateOperation> fileUpdateOperations = new LinkedList<>();
+            Tuple<Collection<String>> updateOps = updateWith(qucosaDocument, updateDocument, fileUpdateOperations);
+
+            Set<String> updateFields = (Set<String>) updateOps.get(0);
+            assertBasicDocumentProperties(qucosaDocument);
+
+            List<String> newDcUrns = new LinkedList<>();
+            if (updateFields.contains("IdentifierUrn")) {
+                Set<String> updateSet = getIdentifierUrnValueSet(updateDocument);
+                newDcUrns.addAll(updateSet);
+            }
+            if (!hasURN(qucosaDocument)) {
+                String urnnbn = generateUrnString(libraryNetworkAbbreviation, libraryIdentifier, prefix, qucosaID);
+                addIdentifierUrn(qucosaDocument, urnnbn);
+                newDcUrns.add(urnnbn);
+            }
+
+            // Every repository write below follows from a change of the merged document,
+            // so resubmitting a stored document leaves the object untouched.
+            if (DOMFingerprint.equal(storedFingerprint, DOMFingerprint.of(qucosaDocument, "Opus_Document"))) {
+                log.debug("Update does not change document {}, skipping repository writes.", pid);
+                unchanged = true;
+                return;
+            }
+
+            NodeList newFileElements = (NodeList) xmlToolkit.evaluate("/Opus/Opus_Document/File", qucosaDocument, XPathConstants.NODESET);
+            List<AttachmentTask> attachmentTasks = new ArrayList<>();
+            for (int i = 0; i < newFileElements.getLength(); i++) {
+                Element fileElement = (Element) newFileElements.item(i);
+                if (!fileElement.hasAttribute("id")) {
+                    addAttachmentTask(attachmentTasks, pid, i + 1, fileElement, null);
+                }
+            }
+            processAttachments(attachmentTasks);
+
+            // Datastreams for new attachments exist before QUCOSA-XML refers to them. If
+            // either write fails, they are purged and the placed files go back to the
+            // tempfiles, so that the update can be repeated.
+            try {
+                createAttachmentDatastreams(attachmentTasks);
+                writeQucosaXml(pid, qucosaDocument, lastModified);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                rollbackAttachments(attachmentTasks);
+                throw e;
+            }
+
+            String newTitle = null;
+            if (updateFields.contains("TitleMain")) {
+                newTitle = xmlToolkit.evaluate("/Opus/Opus_Document/TitleMain[1]/Value", qucosaDocument);
+            }
+            String state = null;
+            if (updateFields.contains("ServerState")) {
+                state = determineState(qucosaDocument);
+            }
+            String label = null;
+            if (updateFields.contains("TitleMain") || updateFields.contains("PersonAuthor")) {
+                label = buildAts(qucosaDocument);
+
+            }
+            List<String> purgeDatastreamList = (List<String>) updateOps.get(1);
+            updateDependentResources(pid, qucosaID, qucosaDocument, newDcUrns, newTitle, true, state, label,
+                    purgeDatastreamList, fileUpdateOperations, true);
+        } finally {
+            if (!unchanged) documentCache.invalidate(pid);
         }
-        modifyDcDatastream(pid, newDcUrns, newTitle);
+    }
 
+    // Applies the operations to the stored document and only writes what the
+    // affected fields are mapped to, besides QUCOSA-XML itself.
+    private void patchAndUpdate(String pid, String qucosaID, List<PatchOperation> operations, String ifMatch)
+            throws Exception {
+        boolean unchanged = false;
+        try {
+            DatastreamProfile profile = fedoraRepository.getDatastreamProfile(pid, DSID_QUCOSA_XML);
+            if (!matchesEntityTag(ifMatch, getEntityTag(profile))) {
+                throw new ConcurrentUpdateException(false);
+            }
+            long lastModified = getLastModified(profile);
+
+            Document qucosaDocument =
+                    xmlToolkit.documentBuilder().parse(fedoraRepository.getDatastreamContent(
+                            pid, DSID_QUCOSA_XML));
+            byte[] storedFingerprint = DOMFingerprint.of(qucosaDocument, "Opus_Document");
+
+            Element root = (Element) qucosaDocument.getElementsByTagName("Opus_Document").item(0);
+            Set<String> patchedFields = new HashSet<>();
+            List<String> newDcUrns = new LinkedList<>();
+            List<String> purgeDatastreamList = new LinkedList<>();
+            List<FileUpdateOperation> fileUpdateOperations = new LinkedList<>();
+            for (PatchOperation operation : operations) {
+                operation.applyTo(root, patchedFields, newDcUrns, purgeDatastreamList, fileUpdateOperations);
+            }
+            qucosaDocument.normalizeDocument();
+            assertBasicDocumentProperties(qucosaDocument);
+
+            if (DOMFingerprint.equal(storedFingerprint, DOMFingerprint.of(qucosaDocument, "Opus_Document"))) {
+                log.debug("Patch does not change document {}, skipping repository writes.", pid);
+                unchanged = true;
+                return;
+            }
+
+            writeQucosaXml(pid, qucosaDocument, lastModified);
 
-        NodeList newFileElements = (NodeList) xPath.evaluate("/Opus/Opus_Document/File", qucosaDocument, XPathConstants.NODESET);
-        for (int i = 0; i < newFileElements.getLength(); i++) {
-            Element fileElement = (Element) newFileElements.item(i);
-            if (!fileElement.hasAttribute("id")) {
-                handleFileElement(pid, i + 1, fileElement);
+            String newTitle = null;
+            if (patchedFields.contains("TitleMain")) {
+                newTitle = xmlToolkit.evaluate("/Opus/Opus_Document/TitleMain[1]/Value", qucosaDocument);
             }
+            String state = null;
+            if (patchedFields.contains("ServerState")) {
+                state = determineState(qucosaDocument);
+            }
+            String label = null;
+            if (patchedFields.contains("TitleMain") || patchedFields.contains("PersonAuthor")) {
+                label = buildAts(qucosaDocument);
+            }
+            updateDependentResources(pid, qucosaID, qucosaDocument, newDcUrns, newTitle,
+                    (state != null) || (label != null), state, label,
+                    purgeDatastreamList, fileUpdateOperations, patchedFields.contains("File"));
+        } finally {
+            if (!unchanged) documentCache.invalidate(pid);
         }
+    }
 
+    // QUCOSA-XML is written first, so that nothing else has been changed
+    // if the stored version turns out to be outdated.
+    private void writeQucosaXml(String pid, Document qucosaDocument, long lastModified) throws Exception {
         InputStream inputStream = IOUtils.toInputStream(
                 DOMSerializer.toString(qucosaDocument));
-        fedoraRepository.modifyDatastreamContent(pid, DSID_QUCOSA_XML, MIMETYPE_QUCOSA_V1_XML, inputStream);
+        try {
+            fedoraRepository.modifyDatastreamContent(pid, DSID_QUCOSA_XML, MIMETYPE_QUCOSA_V1_XML, inputStream,
+                    (lastModified >= 0) ? new Date(lastModified) : null);
+        } catch (FedoraClientException e) {
+            if (e.getStatus() != HttpStatus.CONFLICT.value()) throw e;
+            throw new ConcurrentUpdateException(true);
+        }
+    }
 
-        String state = null;
-        if (updateFields.contains("ServerState")) {
-            state = determineState(qucosaDocument);
+    private List<PatchOperation> parsePatchOperations(Document patchDocument) throws BadQucosaDocumentException {
+        List<PatchOperation> operations = new LinkedList<>();
+        Element patch = (Element) patchDocument.getElementsByTagName("Patch").item(0);
+        for (Element op : getChildElements(patch)) {
+            String type = op.getNodeName();
+            String field = op.getAttribute("field");
+            String fileId = op.getAttribute("id");
+            switch (type) {
+                case "Set":
+                case "Add":
+                    List<Element> values = getChildElements(op);
+                    if (values.isEmpty()) {
+                        throw new BadQucosaDocumentException(type + " requires at least one field element.", patchDocument);
+                    }
+                    for (Element value : values) {
+                        String name = value.getNodeName();
+                        if (name.equals("File")) {
+                            throw new BadQucosaDocumentException("File elements can only be added with PUT.", patchDocument);
+                        }
+                        if (name.equals("DocumentId")) {
+                            throw new BadQucosaDocumentException("DocumentId cannot be patched.", patchDocument);
+                        }
+                        // an empty element would remove the URNs, which DC still lists
+                        if (name.equals("IdentifierUrn") && !value.hasChildNodes()) {
+                            throw new BadQucosaDocumentException("IdentifierUrn cannot be removed.", patchDocument);
+                        }
+                    }
+                    operations.add(new PatchOperation(type, null, 0, null, values));
+                    break;
+                case "Remove":
+                    if (field.isEmpty() || field.equals("File")) {
+                        throw new BadQucosaDocumentException("Remove requires a field attribute other than 'File'.", patchDocument);
+                    }
+                    if (field.equals("DocumentId") || field.equals("IdentifierUrn")) {
+                        throw new BadQucosaDocumentException(field + " cannot be removed.", patchDocument);
+                    }
+                    operations.add(new PatchOperation(type, field, parseIndex(op, patchDocument), null, null));
+                    break;
+                case "SetFile":
+                    if (fileId.isEmpty() || field.isEmpty()) {
+                        throw new BadQucosaDocumentException("SetFile requires id and field attributes.", patchDocument);
+                    }
+                    if (!PATCHABLE_FILE_FIELDS.contains(field)) {
+                        throw new BadQucosaDocumentException("SetFile only supports the fields " + PATCHABLE_FILE_FIELDS + ".",
+                                patchDocument);
+                    }
+                    if (field.equals("PathName") && op.getTextContent().isEmpty()) {
+                        throw new BadQucosaDocumentException("PathName cannot be empty.", patchDocument);
+                    }
+                    operations.add(new PatchOperation(type, field, 0, fileId, Collections.singletonList(op)));
+                    break;
+                case "RemoveFile":
+                    if (fileId.isEmpty()) {
+                        throw new BadQucosaDocumentException("RemoveFile requires an id attribute.", patchDocument);
+                    }
+                    operations.add(new PatchOperation(type, null, 0, fileId, null));
+                    break;
+                default:
+                    throw new BadQucosaDocumentException("Unknown patch operation '" + type + "'.", patchDocument);
+            }
+        }
+        if (operations.isEmpty()) {
+            throw new BadQucosaDocumentException("Patch contains no operations.", patchDocument);
         }
-        String label = null;
-        if (updateFields.contains("TitleMain") || updateFields.contains("PersonAuthor")) {
-            label = buildAts(qucosaDocument);
+        return operations;
+    }
 
+    private int parseIndex(Element op, Document patchDocument) throws BadQucosaDocumentException {
+        if (!op.hasAttribute("index")) return 0;
+        try {
+            int index = Integer.parseInt(op.getAttribute("index"));
+            if (index >= 1) return index;
+        } catch (NumberFormatException ignored) {
         }
-        String ownerId = "qucosa";
-        fedoraRepository.modifyObjectMetadata(pid, state, label, ownerId);
+        throw new BadQucosaDocumentException("Remove index has to be a positive number.", patchDocument);
+    }
 
-        List<String> purgeDatastreamList = (List<String>) updateOps.get(1);
-        purgeFilesAndCorrespondingDatastreams(pid, purgeDatastreamList);
-        executeFileUpdateOperations(pid, fileUpdateOperations);
-        writeHtAccessFile(qucosaID, qucosaDocument);
+    private List<Element> getChildElements(Element parent) {
+        List<Element> elements = new LinkedList<>();
+        NodeList nl = parent.getChildNodes();
+        for (int i = 0; i < nl.getLength(); i++) {
+            if (nl.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                elements.add((Element) nl.item(i));
+            }
+        }
+        return elements;
+    }
 
-        String okResponse = getDocumentUpdatedResponse();
-        return new ResponseEntity<>(okResponse, HttpStatus.OK);
+    // The remaining writes touch disjoint resources and run concurrently. Only file
+    // updates have to wait for the purges, since a file may be renamed to the name
+    // of a purged one. The merged document is read by the .htaccess task alone.
+    private void updateDependentResources(final String pid, final String qucosaID, final Document qucosaDocument,
+                                          final List<String> newDcUrns, final String newTitle,
+                                          boolean updateObjectMetadata, final String state, final String label,
+                                          final List<String> purgeDatastreamList,
+                                          final List<FileUpdateOperation> fileUpdateOperations,
+                                          boolean updateHtAccess) throws Exception {
+        TaskGraph updates = new TaskGraph(updateExecutor);
+        updates.add("DC", new TaskGraph.Task() {
+            @Override
+            public void run() throws Exception {
+                modifyDcDatastream(pid, newDcUrns, newTitle);
+            }
+        });
+        if (updateObjectMetadata) {
+            updates.add("object metadata", new TaskGraph.Task() {
+                @Override
+                public void run() throws Exception {
+                    fedoraRepository.modifyObjectMetadata(pid, state, label, "qucosa");
+                }
+            });
+        }
+        TaskGraph.Node purges = updates.add("purge files", new TaskGraph.Task() {
+            @Override
+            public void run() throws Exception {
+                purgeFilesAndCorrespondingDatastreams(pid, purgeDatastreamList);
+            }
+        });
+        updates.add("update files", new TaskGraph.Task() {
+            @Override
+            public void run() throws Exception {
+                executeFileUpdateOperations(pid, fileUpdateOperations);
+            }
+        }, purges);
+        if (updateHtAccess) {
+            updates.add(".htaccess", new TaskGraph.Task() {
+                @Override
+                public void run() throws Exception {
+                    writeHtAccessFile(qucosaID, qucosaDocument);
+                }
+            });
+        }
+        updates.run();
     }
 
     @ExceptionHandler(BadQucosaDocumentException.class)
@@ -359,7 +917,7 @@ class DocumentResource {
             FileNotFoundException {
 
         NodeList restrictedFiles =
-                (NodeList) xPath.evaluate(
+                (NodeList) xmlToolkit.evaluate(
                         "//File[PathName!='' and FrontdoorVisible!='1']",
                         qucosaDocument,
                         XPathConstants.NODESET);
@@ -484,90 +1042,418 @@ class DocumentResource {
         }
     }
 
-    private void handleFilesAndUpdateDatastreams(Document qucosaXml, String pid)
+    private List<AttachmentTask> handleFileElements(String pid, Document qucosaXml, FedoraObjectBuilder fob)
             throws Exception {
-        boolean isDocumentModified = handleFileElements(pid, qucosaXml);
-        if (isDocumentModified) {
-            InputStream inputStream = IOUtils.toInputStream(
-                    DOMSerializer.toString(qucosaXml));
-            fedoraRepository.modifyDatastreamContent(pid, DSID_QUCOSA_XML, MIMETYPE_QUCOSA_V1_XML, inputStream);
-        }
-    }
-
-    private boolean handleFileElements(String pid, Document qucosaXml)
-            throws Exception {
-        boolean modified = false;
         Element root = (Element) qucosaXml.getElementsByTagName("Opus_Document").item(0);
         NodeList fileNodes = root.getElementsByTagName("File");
+        List<AttachmentTask> tasks = new ArrayList<>();
         for (int i = 0; i < fileNodes.getLength(); i++) {
             Element fileElement = (Element) fileNodes.item(i);
-            handleFileElement(pid, i + 1, fileElement);
-            modified = true;
+            addAttachmentTask(tasks, pid, i + 1, fileElement, fob);
         }
-        return modified;
+        processAttachments(tasks);
+        return tasks;
     }
 
-    private void handleFileElement(String pid, int itemIndex, Element fileElement)
-            throws URISyntaxException, IOException, FedoraClientException, XPathExpressionException {
+    private void addAttachmentTask(List<AttachmentTask> tasks, String pid, int itemIndex, Element fileElement,
+                                   FedoraObjectBuilder fob)
+            throws XPathExpressionException {
         Node tempFile = fileElement.getElementsByTagName("TempFile").item(0);
         Node pathName = fileElement.getElementsByTagName("PathName").item(0);
         if (tempFile == null || pathName == null) {
             return;
         }
+        tasks.add(new AttachmentTask(pid, itemIndex, fileElement, tempFile, pathName.getTextContent(), fob));
+    }
 
-        String id = pid.substring("qucosa:".length());
-        String tmpFileName = tempFile.getTextContent();
-        String targetFilename = pathName.getTextContent();
-        URI fileUri = fileHandlingService.copyTempfileToTargetFileSpace(tmpFileName, targetFilename, id);
+    // Files are copied and their datastreams created concurrently, but the DOM is
+    // only read and modified on the calling thread, in document order.
+    private void processAttachments(List<AttachmentTask> tasks) throws Exception {
+        try {
+            callConcurrently(tasks);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            revertAttachments(tasks);
+            throw e;
+        }
+        for (AttachmentTask task : tasks) {
+            task.applyTo();
+        }
+    }
+
+    private void createAttachmentDatastreams(List<AttachmentTask> tasks) throws Exception {
+        List<Callable<Void>> calls = new ArrayList<>(tasks.size());
+        for (final AttachmentTask task : tasks) {
+            calls.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    task.createDatastream();
+                    return null;
+                }
+            });
+        }
+        callConcurrently(calls);
+    }
+
+    // Waits for every call, so that a rollback does not race with running ones.
+    // The first failure gets rethrown.
+    private void callConcurrently(List<? extends Callable<?>> calls) throws Exception {
+        if (calls.size() == 1) {
+            calls.get(0).call();
+        } else if (calls.size() > 1) {
+            List<Future<?>> futures = new ArrayList<>(calls.size());
+            for (Callable<?> call : calls) {
+                futures.add(attachmentExecutor.submit(call));
+            }
+            Exception failure = null;
+            try {
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                for (Future<?> future : futures) future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    // Files that are not referenced by a stored document must not stay in the
+    // document's directory. Moved tempfiles are put back for another attempt.
+    private void revertAttachments(List<AttachmentTask> tasks) {
+        for (AttachmentTask task : tasks) {
+            task.revert();
+        }
+    }
+
+    // A file stays in place as long as a datastream still refers to it.
+    private void rollbackAttachments(List<AttachmentTask> tasks) {
+        for (AttachmentTask task : tasks) {
+            if (task.purgeDatastream()) task.revert();
+        }
+    }
+
+    // The response is only started with the first PID, so that a listing that fails
+    // right away still gets an error status instead of an empty 200 response.
+    private class DocumentListWriter implements FedoraRepository.PIDHandler<XMLStreamException> {
+        private final HttpServletResponse response;
+        private final String hrefPrefix;
+        private XMLStreamWriter w;
+        private int count = 0;
+
+        DocumentListWriter(HttpServletResponse response, String hrefPrefix) {
+            this.response = response;
+            this.hrefPrefix = hrefPrefix;
+        }
+
+        @Override
+        public void handle(String pid) throws XMLStreamException {
+            start();
+            String nr = pid.substring(pid.lastIndexOf(':') + 1);
+            w.writeEmptyElement("Document");
+            w.writeAttribute("xlink:href", hrefPrefix + nr);
+            w.writeAttribute("xlink:nr", nr);
+            w.writeAttribute("xlink:type", "simple");
+            count++;
+        }
 
-        Node labelNode = fileElement.getElementsByTagName("Label").item(0);
-        String label = (labelNode != null) ? labelNode.getTextContent() : "";
+        boolean isStarted() {
+            return w != null;
+        }
 
-        final Path filePath = new File(fileUri).toPath();
+        int getCount() {
+            return count;
+        }
+
+        void writeError(String message) throws XMLStreamException {
+            start();
+            w.writeEmptyElement("Error");
+            w.writeAttribute("message", (message == null) ? "" : message);
+        }
+
+        void finish() throws XMLStreamException {
+            start();
+            w.writeEndElement();
+            w.writeEndElement();
+            w.writeEndDocument();
+            w.flush();
+            w.close();
+        }
+
+        private void start() throws XMLStreamException {
+            if (w != null) return;
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(negotiateContentType());
+            try {
+                w = xmlOutputFactory.createXMLStreamWriter(response.getOutputStream(), "UTF-8");
+            } catch (IOException e) {
+                throw new XMLStreamException(e);
+            }
+            w.writeStartDocument("UTF-8", "1.0");
+            w.writeStartElement("Opus");
+            w.writeAttribute("version", "2.0");
+            w.writeStartElement("DocumentList");
+            w.writeNamespace("xlink", "http://www.w3.org/1999/xlink");
+        }
+    }
+
+    private static class PidInUseException extends ResourceConflictException {
+        private static final long serialVersionUID = 1L;
+
+        PidInUseException(String pid) {
+            super("Document id " + pid.substring("qucosa:".length()) + " already used.");
+        }
+    }
+
+    private static class ConcurrentUpdateException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final boolean retryable;
+
+        ConcurrentUpdateException(boolean retryable) {
+            this.retryable = retryable;
+        }
+
+        boolean isRetryable() {
+            return retryable;
+        }
+    }
+
+    private interface DocumentModification {
+        void apply(String pid, String qucosaID, String ifMatch) throws Exception;
+    }
+
+    // Set replaces all fields of the given names, Add appends fields, Remove drops
+    // all fields of a name or the one at a 1-based index. SetFile and RemoveFile
+    // address File elements by id. Removing something that is not there is no error.
+    // DocumentId is never patched and IdentifierUrn only replaced, as DC keeps the URNs.
+    private class PatchOperation {
+        private final String type;
+        private final String field;
+        private final int index;
+        private final String fileId;
+        private final List<Element> values;
+
+        PatchOperation(String type, String field, int index, String fileId, List<Element> values) {
+            this.type = type;
+            this.field = field;
+            this.index = index;
+            this.fileId = fileId;
+            this.values = values;
+        }
+
+        void applyTo(Element root, Set<String> patchedFields, List<String> newDcUrns,
+                     List<String> purgeDatastreamList, List<FileUpdateOperation> fileUpdateOperations)
+                throws Exception {
+            Document document = root.getOwnerDocument();
+            switch (type) {
+                case "Set":
+                    Set<String> replaced = new HashSet<>();
+                    for (Element value : values) {
+                        if (replaced.add(value.getNodeName())) {
+                            removeFields(root, value.getNodeName(), 0);
+                        }
+                    }
+                    appendFields(root, patchedFields, newDcUrns);
+                    break;
+                case "Add":
+                    appendFields(root, patchedFields, newDcUrns);
+                    break;
+                case "Remove":
+                    removeFields(root, field, index);
+                    patchedFields.add(field);
+                    break;
+                case "SetFile": {
+                    Element fileElement = getFileElementsById(root).get(fileId);
+                    if (fileElement == null) {
+                        throw new BadQucosaDocumentException("No File element with id '" + fileId + "' found.", document);
+                    }
+                    // updateFileNodeWith goes by local names, which createElement does not set
+                    Element update = document.createElementNS(null, "File");
+                    Element updateField = document.createElementNS(null, field);
+                    updateField.setTextContent(values.get(0).getTextContent());
+                    update.appendChild(updateField);
+                    FileUpdateOperation fupo = updateFileNodeWith(fileElement, update);
+                    fupo.setDsid(DSID_QUCOSA_ATT.concat(fileId));
+                    fileUpdateOperations.add(fupo);
+                    patchedFields.add("File");
+                    break;
+                }
+                case "RemoveFile": {
+                    Element fileElement = getFileElementsById(root).get(fileId);
+                    if (fileElement != null) {
+                        root.removeChild(fileElement);
+                        purgeDatastreamList.add(DSID_QUCOSA_ATT.concat(fileId));
+                        patchedFields.add("File");
+                    }
+                    break;
+                }
+            }
+        }
+
+        private void appendFields(Element root, Set<String> patchedFields, List<String> newDcUrns) {
+            for (Element value : values) {
+                patchedFields.add(value.getNodeName());
+                // like with PUT, an empty element only removes the field
+                if (!value.hasChildNodes()) continue;
+                root.appendChild(root.getOwnerDocument().importNode(value, true));
+                if (value.getNodeName().equals("IdentifierUrn")) {
+                    Node urn = value.getElementsByTagName("Value").item(0);
+                    if (urn != null) newDcUrns.add(urn.getTextContent());
+                }
+            }
+        }
+
+        private void removeFields(Element root, String name, int index) {
+            List<Node> victims = getChildNodesByName(root, name);
+            if (index == 0) {
+                for (Node victim : victims) root.removeChild(victim);
+            } else if (index <= victims.size()) {
+                root.removeChild(victims.get(index - 1));
+            }
+        }
+    }
+
+    private class AttachmentTask implements Callable<AttachmentTask> {
+        private final String pid;
+        private final int itemIndex;
+        private final Element fileElement;
+        private final Node tempFile;
+        private final String tmpFileName;
+        private final String targetFilename;
+        private final String label;
+        private final String state;
+        private final boolean needsMimeType;
+        private final boolean needsFileSize;
+        private final FedoraObjectBuilder fob;
+        private FileHandlingService.PlacedFile placedFile;
+        private boolean datastreamCreated;
+        private URI fileUri;
+        private String detectedContentType;
+        private long fileSize;
+        private String checksumType;
+        private String checksum;
+
+        // With a FedoraObjectBuilder the datastream is declared for ingest,
+        // otherwise it has to be added to the existing object afterwards.
+        AttachmentTask(String pid, int itemIndex, Element fileElement, Node tempFile, String targetFilename,
+                       FedoraObjectBuilder fob)
+                throws XPathExpressionException {
+            this.pid = pid;
+            this.fob = fob;
+            this.itemIndex = itemIndex;
+            this.fileElement = fileElement;
+            this.tempFile = tempFile;
+            this.tmpFileName = tempFile.getTextContent();
+            this.targetFilename = targetFilename;
+            Node labelNode = fileElement.getElementsByTagName("Label").item(0);
+            this.label = (labelNode != null) ? labelNode.getTextContent() : "";
+            this.state = determineDatastreamState(fileElement);
+            this.needsMimeType = !(Boolean) xmlToolkit.evaluate("MimeType[text()!='']", fileElement, XPathConstants.BOOLEAN);
+            this.needsFileSize = !(Boolean) xmlToolkit.evaluate("FileSize[text()!='']", fileElement, XPathConstants.BOOLEAN);
+        }
+
+        @Override
+        public AttachmentTask call() throws URISyntaxException, IOException, FedoraClientException {
+            String id = pid.substring("qucosa:".length());
+            // an ingest must not take over files of an object that already uses the PID
+            placedFile = fileHandlingService.placeTempfileInTargetFileSpace(tmpFileName, targetFilename, id,
+                    (fob == null));
+            fileUri = placedFile.getUri();
+            checksumType = placedFile.getChecksumType();
+            checksum = placedFile.getChecksum();
+
+            final Path filePath = new File(fileUri).toPath();
+            detectedContentType = Files.probeContentType(filePath);
+            if (needsFileSize) fileSize = Files.size(filePath);
+            return this;
+        }
+
+        void createDatastream() throws FedoraClientException, IOException {
+            fedoraRepository.createExternalReferenceDatastream(
+                    pid,
+                    getDatastreamId(),
+                    label,
+                    fileUri,
+                    detectedContentType,
+                    state,
+                    getRepositoryChecksumType(),
+                    getRepositoryChecksum());
+            datastreamCreated = true;
+        }
+
+        boolean purgeDatastream() {
+            if (!datastreamCreated) return true;
+            try {
+                fedoraRepository.purgeDatastream(pid, getDatastreamId());
+                datastreamCreated = false;
+            } catch (FedoraClientException e) {
+                log.warn("Cannot purge datastream {} of {}: {}", getDatastreamId(), pid, e.getMessage());
+            }
+            return !datastreamCreated;
+        }
+
+        void revert() {
+            if (placedFile == null) return;
+            try {
+                fileHandlingService.revertPlacement(placedFile);
+            } catch (IOException e) {
+                log.warn("Cannot revert placement of {}: {}", tmpFileName, e.getMessage());
+            }
+            placedFile = null;
+        }
+
+        private String getRepositoryChecksumType() {
+            return fileHandlingService.isChecksumVerification() ? checksumType : FedoraRepository.DISABLED_CHECKSUM_TYPE;
+        }
+
+        private String getRepositoryChecksum() {
+            return fileHandlingService.isChecksumVerification() ? checksum : null;
+        }
+
+        private String getDatastreamId() {
+            return DSID_QUCOSA_ATT + (itemIndex);
+        }
 
-        String detectedContentType = Files.probeContentType(filePath);
-        if (!(Boolean) xPath.evaluate("MimeType[text()!='']", fileElement, XPathConstants.BOOLEAN)) {
-            if (detectedContentType != null) {
+        void applyTo() throws FedoraObjectBuilderException {
+            if (needsMimeType && (detectedContentType != null)) {
                 Element mimeTypeElement = fileElement.getOwnerDocument().createElement("MimeType");
                 mimeTypeElement.setTextContent(detectedContentType);
                 fileElement.appendChild(mimeTypeElement);
             }
-        }
 
-        if (!(Boolean) xPath.evaluate("FileSize[text()!='']", fileElement, XPathConstants.BOOLEAN)) {
-            Element fileSizeElement = fileElement.getOwnerDocument().createElement("FileSize");
-            fileSizeElement.setTextContent(String.valueOf(Files.size(filePath)));
-            fileElement.appendChild(fileSizeElement);
-        }
+            if (needsFileSize) {
+                Element fileSizeElement = fileElement.getOwnerDocument().createElement("FileSize");
+                fileSizeElement.setTextContent(String.valueOf(fileSize));
+                fileElement.appendChild(fileSizeElement);
+            }
 
-        String dsid = DSID_QUCOSA_ATT + (itemIndex);
-        String state = determineDatastreamState(fileElement);
-        DatastreamProfile dsp = fedoraRepository.createExternalReferenceDatastream(
-                pid,
-                dsid,
-                label,
-                fileUri,
-                detectedContentType,
-                state);
-        fileElement.setAttribute("id", String.valueOf(itemIndex));
-        addHashValue(fileElement, dsp);
+            fileElement.setAttribute("id", String.valueOf(itemIndex));
+            if (fob != null) {
+                fob.addExternalReference(getDatastreamId(), label, fileUri, detectedContentType, state,
+                        getRepositoryChecksumType(), getRepositoryChecksum());
+            }
+            addHashValue(fileElement, checksumType, checksum);
 
-        fileElement.removeChild(tempFile);
+            fileElement.removeChild(tempFile);
+        }
     }
 
     private String determineDatastreamState(Element fileElement) throws XPathExpressionException {
-        if (!(Boolean) xPath.evaluate("FrontdoorVisible[text()='1']", fileElement, XPathConstants.BOOLEAN)) {
+        if (!(Boolean) xmlToolkit.evaluate("FrontdoorVisible[text()='1']", fileElement, XPathConstants.BOOLEAN)) {
             return "I";
         }
         return "A";
     }
 
-    private void addHashValue(Element fileElement, DatastreamProfile dsp) {
-        if ((fileElement == null) || (dsp == null)) return;
-
-        String hashType = dsp.getDsChecksumType();
-        String hashValue = dsp.getDsChecksum();
-
+    private void addHashValue(Element fileElement, String hashType, String hashValue) {
         if ((hashType != null) && (hashValue != null) && !hashType.isEmpty() && !hashValue.isEmpty()) {
             Element hashValueElement = fileElement.getOwnerDocument().createElement("HashValue");
             Element typeElement = fileElement.getOwnerDocument().createElement("Type");
@@ -582,29 +1468,6 @@ class DocumentResource {
         }
     }
 
-    private void removeFileElementsWithoutCorrespondingDatastream(String pid, Document doc) throws FedoraClientException {
-        Element root = (Element) doc.getElementsByTagName("Opus_Document").item(0);
-        NodeList fileNodes = root.getElementsByTagName("File");
-
-        // removing nodes from the node list changes the node list
-        ArrayList<Node> removees = new ArrayList<>(fileNodes.getLength());
-
-        for (int i = 0; i < fileNodes.getLength(); i++) {
-            Node fileNode = fileNodes.item(i);
-            Node idAttr = fileNode.getAttributes().getNamedItem("id");
-            if (idAttr == null) {
-                removees.add(fileNode);
-            } else {
-                String fid = idAttr.getTextContent();
-                String dsid = "QUCOSA-ATT-".concat(fid);
-                if (!fedoraRepository.hasDatastream(pid, dsid)) {
-                    removees.add(fileNode);
-                }
-            }
-        }
-        for (Node n : removees) root.removeChild(n);
-    }
-
     private void addDocumentId(Document qucosaDocument, String id) {
         Element elDocumentId = qucosaDocument.createElement("DocumentId");
         Text elText = qucosaDocument.createTextNode(id);
@@ -613,7 +1476,7 @@ class DocumentResource {
     }
 
     private boolean hasId(Document doc) throws XPathExpressionException {
-        return (!xPath.evaluate("//DocumentId", doc).isEmpty());
+        return (!xmlToolkit.evaluate("//DocumentId", doc).isEmpty());
     }
 
     private Set<String> getIdentifierUrnValueSet(Document updateDocument) {
@@ -629,24 +1492,8 @@ class DocumentResource {
         return result;
     }
 
-    private void removeEmtpyFields(Document doc) {
-        Element root = (Element) doc.getElementsByTagName("Opus_Document").item(0);
-        NodeList childNodes = root.getChildNodes();
-
-        // removing nodes from the node list changes the node list
-        // so for iteration is not invariant.
-        ArrayList<Node> removees = new ArrayList<>(childNodes.getLength());
-
-        for (int i = 0; i < childNodes.getLength(); i++) {
-            Node childNode = childNodes.item(i);
-            if (!childNode.hasChildNodes()) removees.add(childNode);
-        }
-        for (Node n : removees) root.removeChild(n);
-
-    }
-
     private String determineState(Document qucosaDocument) throws XPathExpressionException {
-        String serverState = xPath.evaluate("/Opus/Opus_Document/ServerState", qucosaDocument);
+        String serverState = xmlToolkit.evaluate("/Opus/Opus_Document/ServerState", qucosaDocument);
         switch (serverState) {
             case "published":
                 return "A";
@@ -660,16 +1507,17 @@ class DocumentResource {
     }
 
     private void modifyDcDatastream(String pid, List<String> urns, String title)
-            throws FedoraClientException, ParserConfigurationException, IOException, SAXException, TransformerException, XPathExpressionException {
+            throws FedoraClientException, IOException, SAXException, TransformerException, XPathExpressionException {
         if ((urns == null || urns.isEmpty()) && (title == null || title.isEmpty())) return;
 
         InputStream dcStream = fedoraRepository.getDatastreamContent(pid, "DC");
-        Document dcDocument = documentBuilder.parse(dcStream);
+        Document dcDocument = xmlToolkit.documentBuilder().parse(dcStream);
 
         if (urns != null) {
             for (String urnnbn : urns) {
                 String urn = urnnbn.trim().toLowerCase();
-                if (!(boolean) xPath.compile("//ns:identifier[text()='" + urn + "']").evaluate(dcDocument, XPathConstants.BOOLEAN)) {
+                if (!(boolean) xmlToolkit.evaluate("//dc:identifier[text()=$urn]", dcDocument, XPathConstants.BOOLEAN,
+                        Collections.singletonMap("urn", urn))) {
                     Element newDcIdentifier = dcDocument.createElementNS(
                             "http://purl.org/dc/elements/1.1/", "identifier");
                     newDcIdentifier.setTextContent(urn);
@@ -720,10 +1568,9 @@ class DocumentResource {
         }
 
         List<String> purgeDatastreamList = new LinkedList<>();
-        if ((Boolean) xPath.evaluate("//File", updateDocument, XPathConstants.BOOLEAN)) {
+        if ((Boolean) xmlToolkit.evaluate("//File", updateDocument, XPathConstants.BOOLEAN)) {
             updateFileElementsInPlace(
                     targetDocument,
-                    updateDocument,
                     fileUpdateOperations,
                     targetRoot,
                     updateRoot, purgeDatastreamList);
@@ -733,9 +1580,10 @@ class DocumentResource {
         return new Tuple<>(distinctUpdateFieldList, purgeDatastreamList);
     }
 
+    // Only File elements directly below Opus_Document are attachments. File elements
+    // nested elsewhere in an update neither keep an attachment nor update one.
     private void updateFileElementsInPlace(
             Document targetDocument,
-            Document updateDocument,
             List<FileUpdateOperation> fileUpdateOperations,
             Element targetRoot,
             Element updateRoot,
@@ -744,16 +1592,13 @@ class DocumentResource {
             XPathExpressionException,
             FedoraClientException,
             IOException {
-        List<Node> targetFileNodes = getChildNodesByName(targetRoot, "File");
         List<Node> updateFileNodes = getChildNodesByName(updateRoot, "File");
-        for (Node targetNode : targetFileNodes) {
-            Node idAttr = targetNode.getAttributes().getNamedItem("id");
-            if (idAttr != null) {
-                String idAttrValue = idAttr.getTextContent();
-                if (!idAttrValue.isEmpty() &&
-                        !((Boolean) xPath.evaluate("//File[@id='" + idAttrValue + "']", updateDocument, XPathConstants.BOOLEAN))) {
-                    purgeDatastreamList.add(DSID_QUCOSA_ATT.concat(idAttrValue));
-                }
+        Map<String, Element> targetFilesById = getFileElementsById(targetRoot);
+        Map<String, Element> updateFilesById = getFileElementsById(updateRoot);
+
+        for (String id : targetFilesById.keySet()) {
+            if (!updateFilesById.containsKey(id)) {
+                purgeDatastreamList.add(DSID_QUCOSA_ATT.concat(id));
             }
         }
         for (Node updateNode : updateFileNodes) {
@@ -763,14 +1608,26 @@ class DocumentResource {
                 targetRoot.appendChild(updateNode);
             } else {
                 String idAttrValue = idAttr.getTextContent();
-                Node targetNode = (Node) xPath.evaluate("//File[@id='" + idAttrValue + "']", targetDocument, XPathConstants.NODE);
-                FileUpdateOperation fupo = updateFileNodeWith((Element) targetNode, (Element) updateNode);
+                Element targetNode = targetFilesById.get(idAttrValue);
+                FileUpdateOperation fupo = updateFileNodeWith(targetNode, (Element) updateNode);
                 fupo.setDsid(DSID_QUCOSA_ATT.concat(idAttrValue));
                 fileUpdateOperations.add(fupo);
             }
         }
     }
 
+    private Map<String, Element> getFileElementsById(Element root) {
+        Map<String, Element> filesById = new LinkedHashMap<>();
+        for (Node n : getChildNodesByName(root, "File")) {
+            Element fileElement = (Element) n;
+            String id = fileElement.getAttribute("id");
+            if (!id.isEmpty() && !filesById.containsKey(id)) {
+                filesById.put(id, fileElement);
+            }
+        }
+        return filesById;
+    }
+
     private List<Node> getChildNodesByName(final Element targetRoot, String nodeName) {
         List<Node> nodeList = new LinkedList<>();
         NodeList nl = targetRoot.getChildNodes();
@@ -834,17 +1691,22 @@ class DocumentResource {
 
     private void assertPidIsNotUsed(String pid) throws ResourceConflictException, FedoraClientException {
         if (fedoraRepository.hasObject(pid)) {
-            String qucosaId = pid.substring("qucosa:".length());
-            throw new ResourceConflictException("Document id " + qucosaId + " already used.");
+            throw new PidInUseException(pid);
         }
     }
 
+    // Fedora answers an ingest with a PID in use with 409 Conflict
+    private boolean isPidInUse(Exception ex) {
+        return (ex instanceof FedoraClientException)
+                && (((FedoraClientException) ex).getStatus() == HttpStatus.CONFLICT.value());
+    }
+
     private boolean hasURN(final FedoraObjectBuilder fob) {
         return (!fob.URNs().isEmpty());
     }
 
     private boolean hasURN(final Document doc) throws XPathExpressionException {
-        return (!xPath.evaluate("//IdentifierUrn/Value[1]", doc).isEmpty());
+        return (!xmlToolkit.evaluate("//IdentifierUrn/Value[1]", doc).isEmpty());
     }
 
     private boolean hasPID(final FedoraObjectBuilder fob) {
@@ -876,17 +1738,25 @@ class DocumentResource {
         return new ResponseEntity<>(sw.toString(), status);
     }
 
+    private void writeErrorResponse(HttpServletResponse response, String message, HttpStatus status)
+            throws XMLStreamException, IOException {
+        ResponseEntity<String> error = errorResponse(message, status);
+        response.setStatus(error.getStatusCode().value());
+        response.setContentType("application/xml; charset=UTF-8");
+        response.getOutputStream().write(error.getBody().getBytes("UTF-8"));
+    }
+
     private void assertBasicDocumentProperties(Document qucosaDocument) throws Exception {
         assertXPathNodeExists("/Opus[@version='2.0']", "No Opus node with version '2.0'.", qucosaDocument);
         assertXPathNodeExists("/Opus/Opus_Document", "No Opus_Document node found.", qucosaDocument);
-        if ((Boolean) xPath.evaluate("/Opus/Opus_Document/PersonAuthor[1]", qucosaDocument, XPathConstants.BOOLEAN)) {
+        if ((Boolean) xmlToolkit.evaluate("/Opus/Opus_Document/PersonAuthor[1]", qucosaDocument, XPathConstants.BOOLEAN)) {
             assertXPathNodeExists("/Opus/Opus_Document/PersonAuthor[1]/LastName", "No PersonAuthor node with LastName node found.", qucosaDocument);
         }
         assertXPathNodeExists("/Opus/Opus_Document/TitleMain[1]/Value", "No TitleMain node found.", qucosaDocument);
     }
 
     private void assertXPathNodeExists(String xpath, String msg, Document doc) throws XPathExpressionException, BadQucosaDocumentException {
-        if (xPath.evaluate(xpath, doc, XPathConstants.NODE) == null) {
+        if (xmlToolkit.evaluate(xpath, doc, XPathConstants.NODE) == null) {
             throw new BadQucosaDocumentException(msg, doc);
         }
     }
@@ -894,23 +1764,23 @@ class DocumentResource {
     private FedoraObjectBuilder buildDocument(Document qucosaDoc) throws Exception {
         FedoraObjectBuilder fob = new FedoraObjectBuilder();
 
-        String id = xPath.evaluate("/Opus/Opus_Document/DocumentId", qucosaDoc);
+        String id = xmlToolkit.evaluate("/Opus/Opus_Document/DocumentId", qucosaDoc);
         String pid = "qucosa:" + id;
         if (!id.isEmpty()) fob.pid(pid);
 
         String ats = buildAts(qucosaDoc);
         if (!ats.isEmpty()) fob.label(ats);
 
-        String title = xPath.evaluate("/Opus/Opus_Document/TitleMain[1]/Value", qucosaDoc);
+        String title = xmlToolkit.evaluate("/Opus/Opus_Document/TitleMain[1]/Value", qucosaDoc);
         if (!title.isEmpty()) fob.title(title);
 
-        NodeList urnNodes = (NodeList) xPath.evaluate("/Opus/Opus_Document/IdentifierUrn/Value", qucosaDoc, XPathConstants.NODESET);
+        NodeList urnNodes = (NodeList) xmlToolkit.evaluate("/Opus/Opus_Document/IdentifierUrn/Value", qucosaDoc, XPathConstants.NODESET);
         for (int i = 0; i < urnNodes.getLength(); i++) {
             fob.addURN(urnNodes.item(i).getNodeValue());
         }
 
         String state;
-        switch (xPath.evaluate("/Opus/Opus_Document/ServerState", qucosaDoc)) {
+        switch (xmlToolkit.evaluate("/Opus/Opus_Document/ServerState", qucosaDoc)) {
             case "published":
                 state = "A";
                 break;
@@ -930,9 +1800,9 @@ class DocumentResource {
     }
 
     private String buildAts(final Document qucosaDoc) throws XPathExpressionException {
-        return ats(xPath.evaluate("/Opus/Opus_Document/PersonAuthor[1]/LastName", qucosaDoc),
-                xPath.evaluate("/Opus/Opus_Document/PersonAuthor[1]/FirstName", qucosaDoc),
-                xPath.evaluate("/Opus/Opus_Document/TitleMain[1]/Value", qucosaDoc));
+        return ats(xmlToolkit.evaluate("/Opus/Opus_Document/PersonAuthor[1]/LastName", qucosaDoc),
+                xmlToolkit.evaluate("/Opus/Opus_Document/PersonAuthor[1]/FirstName", qucosaDoc),
+                xmlToolkit.evaluate("/Opus/Opus_Document/TitleMain[1]/Value", qucosaDoc));
     }
 
     private String getDocumentCreatedResponse(String id) throws XMLStreamException {
@@ -951,6 +1821,34 @@ class DocumentResource {
         return sw.toString();
     }
 
+    private String getIngestJobResponse(IngestJob job) throws XMLStreamException {
+        String id = job.getPid().substring("qucosa:".length());
+        StringWriter sw = new StringWriter();
+        XMLStreamWriter w = xmlOutputFactory.createXMLStreamWriter(sw);
+        w.writeStartDocument("UTF-8", "1.0");
+        w.writeStartElement("Opus");
+        w.writeStartElement("IngestJob");
+        w.writeNamespace(XLINK_NAMESPACE_PREFIX, XLINK_NAMESPACE);
+        w.writeAttribute(XLINK_NAMESPACE, "href", getHrefLink("job/" + job.getId()));
+        w.writeAttribute("id", job.getId());
+        w.writeAttribute("state", job.getState().name());
+        if (job.getStep() != null) w.writeAttribute("step", job.getStep());
+        w.writeAttribute("documentId", id);
+        if (job.getState() == IngestJob.State.SUCCEEDED) {
+            w.writeEmptyElement("Opus_Document");
+            w.writeAttribute(XLINK_NAMESPACE, "href", getHrefLink(id));
+            w.writeAttribute("id", id);
+        } else if (job.getState() == IngestJob.State.FAILED) {
+            w.writeEmptyElement("Error");
+            w.writeAttribute("message", (job.getMessage() == null) ? "" : job.getMessage());
+        }
+        w.writeEndElement();
+        w.writeEndElement();
+        w.writeEndDocument();
+        w.flush();
+        return sw.toString();
+    }
+
     private String getDocumentUpdatedResponse() throws XMLStreamException {
         StringWriter sw = new StringWriter();
         XMLStreamWriter w = xmlOutputFactory.createXMLStreamWriter(sw);
@@ -965,6 +1863,209 @@ class DocumentResource {
         return sw.toString();
     }
 
+    private String getEntityTag(DatastreamProfile profile) {
+        if (profile == null) return null;
+        String checksum = profile.getDsChecksum();
+        if ((checksum != null) && !checksum.isEmpty() && !checksum.equals("none")) {
+            return "\"" + checksum + "\"";
+        }
+        // datastream versions are immutable, so the version id identifies the content as well
+        String versionId = profile.getDsVersionID();
+        if ((versionId != null) && !versionId.isEmpty()) {
+            long created = getLastModified(profile);
+            return "\"" + versionId + ((created >= 0) ? "-" + created : "") + "\"";
+        }
+        return null;
+    }
+
+    private long getLastModified(DatastreamProfile profile) {
+        if ((profile == null) || (profile.getDsCreateDate() == null)) return -1;
+        return profile.getDsCreateDate().toGregorianCalendar().getTimeInMillis();
+    }
+
+    private boolean isNotModified(String etag, long lastModified) {
+        if (httpServletRequest == null) return false;
+
+        // If-None-Match takes precedence over If-Modified-Since (RFC 7232, section 3.3)
+        String ifNoneMatch = httpServletRequest.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (etag == null) return false;
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+                if (candidate.equals("*") || withoutContentCoding(candidate).equals(etag)) return true;
+            }
+            return false;
+        }
+
+        if (lastModified < 0) return false;
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = httpServletRequest.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        // HTTP dates have a resolution of one second
+        return (ifModifiedSince >= 0) && ((lastModified / 1000 * 1000) <= ifModifiedSince);
+    }
+
+    private boolean matchesEntityTag(String ifMatch, String etag) {
+        if (ifMatch == null) return true;
+        for (String candidate : ifMatch.split(",")) {
+            candidate = candidate.trim();
+            // weak entity tags never match for If-Match (RFC 7232, section 3.1)
+            if (candidate.equals("*") || ((etag != null) && withoutContentCoding(candidate).equals(etag))) return true;
+        }
+        return false;
+    }
+
+    // The CompressionFilter appends the content coding to the entity tags of compressed responses
+    private String withoutContentCoding(String entityTag) {
+        for (String coding : new String[]{"gzip", "deflate"}) {
+            String suffix = "-" + coding + "\"";
+            if (entityTag.endsWith(suffix)) {
+                return entityTag.substring(0, entityTag.length() - suffix.length()) + "\"";
+            }
+        }
+        return entityTag;
+    }
+
+    private List<String> parseIdList(String ids) {
+        List<String> result = new ArrayList<>();
+        for (String id : ids.split(",")) {
+            String trimmed = id.trim();
+            if (!trimmed.isEmpty()) result.add(trimmed);
+        }
+        return result;
+    }
+
+    private byte[] fetchDocumentFragment(String qucosaID) throws XMLStreamException {
+        String pid = "qucosa:".concat(qucosaID);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream dsContent = null;
+        try {
+            dsContent = fedoraRepository.getDatastreamContent(pid, DSID_QUCOSA_XML);
+            new OpusDocumentStreamFilter(xmlToolkit, fedoraRepository, pid)
+                    .filterDocumentElement(dsContent, out);
+            return out.toByteArray();
+        } catch (FedoraClientException e) {
+            return documentErrorFragment(qucosaID, e.getStatus(), e.getMessage());
+        } catch (XMLStreamException e) {
+            log.error("Cannot render document {}: {}", pid, e.getMessage());
+            return documentErrorFragment(qucosaID, HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(dsContent);
+        }
+    }
+
+    private byte[] awaitFragment(Future<byte[]> future) throws XMLStreamException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching documents");
+        } catch (ExecutionException e) {
+            log.error("Fetching document failed: {}", e.getCause().getMessage());
+            return documentErrorFragment(null, HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getCause().getMessage());
+        }
+    }
+
+    private byte[] documentErrorFragment(String qucosaID, int status, String message) throws XMLStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLStreamWriter w = xmlOutputFactory.createXMLStreamWriter(out, "UTF-8");
+        w.writeEmptyElement("Error");
+        if (qucosaID != null) w.writeAttribute("id", qucosaID);
+        w.writeAttribute("status", String.valueOf(status));
+        w.writeAttribute("message", (message == null) ? "" : message);
+        w.writeEndDocument();
+        w.close();
+        return out.toByteArray();
+    }
+
+    private StartElement nextStartElement(XMLEventReader r) throws XMLStreamException {
+        while (r.hasNext()) {
+            XMLEvent event = r.nextEvent();
+            if (event.isStartElement()) return event.asStartElement();
+            if (event.isEndElement()) return null;
+        }
+        return null;
+    }
+
+    // Copies the next child element of the batch into a standalone document,
+    // carrying over namespaces declared on the batch element.
+    private byte[] nextDocument(XMLEventReader r, StartElement batchElement) throws XMLStreamException {
+        StartElement start = nextStartElement(r);
+        if (start == null) return null;
+
+        List<Namespace> namespaces = new ArrayList<>();
+        Set<String> declared = new HashSet<>();
+        Iterator<?> it = start.getNamespaces();
+        while (it.hasNext()) {
+            Namespace ns = (Namespace) it.next();
+            namespaces.add(ns);
+            declared.add(ns.getPrefix());
+        }
+        it = batchElement.getNamespaces();
+        while (it.hasNext()) {
+            Namespace ns = (Namespace) it.next();
+            if (declared.add(ns.getPrefix())) namespaces.add(ns);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLEventWriter ew = xmlOutputFactory.createXMLEventWriter(out, "UTF-8");
+        XMLEventFactory ef = xmlToolkit.xmlEventFactory();
+        ew.add(ef.createStartDocument("UTF-8", "1.0"));
+        ew.add(ef.createStartElement(start.getName(), start.getAttributes(), namespaces.iterator()));
+        int depth = 1;
+        while (depth > 0) {
+            XMLEvent event = r.nextEvent();
+            if (event.isStartElement()) depth++;
+            if (event.isEndElement()) depth--;
+            ew.add(event);
+        }
+        ew.add(ef.createEndDocument());
+        ew.close();
+        return out.toByteArray();
+    }
+
+    private void writeBatchResult(XMLStreamWriter w, int index, Future<String> future, String hrefPrefix)
+            throws XMLStreamException, IOException {
+        try {
+            String id = future.get();
+            w.writeEmptyElement("Opus_Document");
+            w.writeAttribute("index", String.valueOf(index));
+            w.writeAttribute(XLINK_NAMESPACE, "href", hrefPrefix + id);
+            w.writeAttribute("id", id);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while ingesting documents");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            HttpStatus status;
+            if ((cause instanceof BadQucosaDocumentException) || (cause instanceof SAXException)) {
+                status = HttpStatus.BAD_REQUEST;
+            } else if (cause instanceof ResourceConflictException) {
+                status = HttpStatus.CONFLICT;
+            } else {
+                status = HttpStatus.INTERNAL_SERVER_ERROR;
+            }
+            log.error("Batch ingest of document {} failed: {}", index, cause.getMessage());
+            w.writeEmptyElement("Error");
+            w.writeAttribute("index", String.valueOf(index));
+            w.writeAttribute("status", String.valueOf(status.value()));
+            w.writeAttribute("message", (cause.getMessage() == null) ? "" : cause.getMessage());
+        }
+        w.flush();
+    }
+
+    private String negotiateContentType() {
+        String accept = (httpServletRequest == null) ? null : httpServletRequest.getHeader("Accept");
+        if ((accept != null) && accept.contains(MIMETYPE_QUCOSA_V1_XML)) {
+            return MIMETYPE_QUCOSA_V1_XML + "; charset=UTF-8";
+        }
+        return "application/xml; charset=UTF-8";
+    }
+
     private String getHrefLink(String pid) {
         if (httpServletRequest == null) {
             return "/" + pid;
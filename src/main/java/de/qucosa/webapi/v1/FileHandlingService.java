@@ -17,23 +17,88 @@
 
 package de.qucosa.webapi.v1;
 
+import de.qucosa.fedora.FedoraRepository;
 import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 
 public class FileHandlingService {
 
+    public enum Placement {MOVE, LINK, COPY}
+
+    public static final String DEFAULT_PLACEMENT = "move,link,copy";
+    public static final long DEFAULT_UPLOAD_MAX_AGE = 24 * 60 * 60 * 1000L;
+    public static final String CHECKSUM_TYPE = FedoraRepository.DEFAULT_CHECKSUM_TYPE;
+    private static final int BUFFER_SIZE = 65536;
+    private static final Pattern UPLOAD_NAME = Pattern.compile("upload-[0-9a-f\\-]{36}");
+
+    private final Logger log = LoggerFactory.getLogger(FileHandlingService.class);
+
     private File documentsPath;
     private File tempfilesPath;
+    private List<Placement> placements;
+    private boolean checksumVerification;
+    private long uploadMaxAge;
+    private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<>();
 
     public FileHandlingService(String pathToDocuments, String pathToTempFiles) throws Exception {
-        this(new File(pathToDocuments), new File(pathToTempFiles));
+        this(pathToDocuments, pathToTempFiles, DEFAULT_PLACEMENT, true);
+    }
+
+    public FileHandlingService(String pathToDocuments, String pathToTempFiles, String placement,
+                               boolean checksumVerification) throws Exception {
+        this(pathToDocuments, pathToTempFiles, placement, checksumVerification, DEFAULT_UPLOAD_MAX_AGE);
+    }
+
+    public FileHandlingService(String pathToDocuments, String pathToTempFiles, String placement,
+                               boolean checksumVerification, long uploadMaxAgeMillis) throws Exception {
+        this(new File(pathToDocuments), new File(pathToTempFiles), placement, checksumVerification,
+                uploadMaxAgeMillis);
     }
 
     public FileHandlingService(File pathToDocuments, File pathToTempFiles) throws Exception {
+        this(pathToDocuments, pathToTempFiles, DEFAULT_PLACEMENT, true);
+    }
+
+    public FileHandlingService(File pathToDocuments, File pathToTempFiles, String placement,
+                               boolean checksumVerification) throws Exception {
+        this(pathToDocuments, pathToTempFiles, placement, checksumVerification, DEFAULT_UPLOAD_MAX_AGE);
+    }
+
+    public FileHandlingService(File pathToDocuments, File pathToTempFiles, String placement,
+                               boolean checksumVerification, long uploadMaxAgeMillis) throws Exception {
+        placements = parsePlacements(placement);
+        this.checksumVerification = checksumVerification;
+        this.uploadMaxAge = uploadMaxAgeMillis;
+
         documentsPath = pathToDocuments;
         assertIsDirectory(documentsPath);
         assertIsWriteable(documentsPath);
@@ -51,6 +116,241 @@ public class FileHandlingService {
         return targetFile.toURI().normalize();
     }
 
+    // Whether the repository should verify the checksums computed on placement
+    // by reading the files once more, or just take them.
+    public boolean isChecksumVerification() {
+        return checksumVerification;
+    }
+
+    // Tries the configured placements in order. Moving and linking avoid copying
+    // any bytes but only work within one filesystem; either way the tempfile is gone.
+    // The checksum is computed on the way, so every file gets read only once.
+    public PlacedFile placeTempfileInTargetFileSpace(String tempFilename, String targetName, String qid)
+            throws IOException {
+        return placeTempfileInTargetFileSpace(tempFilename, targetName, qid, true);
+    }
+
+    // Without replaceExisting a file already in place is left alone and the placement fails.
+    public PlacedFile placeTempfileInTargetFileSpace(String tempFilename, String targetName, String qid,
+                                                     boolean replaceExisting) throws IOException {
+        Path source = new File(tempfilesPath, tempFilename).toPath();
+        Path target = new File(new File(documentsPath, qid), targetName).toPath();
+        if (!Files.isRegularFile(source)) {
+            throw new IOException("Tempfile '" + source + "' does not exist");
+        }
+        Files.createDirectories(target.getParent());
+        if (replaceExisting) {
+            Files.deleteIfExists(target);
+        } else if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+
+        // Uploads already know their checksum. Appends are held off while an upload
+        // gets placed, and the upload is used up afterwards, so that a linked file
+        // cannot be changed through it.
+        Upload upload = getUpload(tempFilename);
+        if (upload == null) {
+            return place(tempFilename, source, target, null);
+        }
+        synchronized (upload) {
+            if (upload.isClosed()) {
+                throw new IOException("Upload '" + tempFilename + "' has already been placed");
+            }
+            if (upload.isAppending()) {
+                throw new IOException("Upload '" + tempFilename + "' is still being received");
+            }
+            PlacedFile placedFile = place(tempFilename, source, target, upload);
+            upload.close();
+            uploads.remove(tempFilename);
+            try {
+                Files.deleteIfExists(source);
+            } catch (IOException e) {
+                revertPlacement(placedFile);
+                throw e;
+            }
+            return placedFile;
+        }
+    }
+
+    private PlacedFile place(String tempFilename, Path source, Path target, Upload upload) throws IOException {
+        Placement placed = null;
+        MessageDigest copyDigest = null;
+        IOException lastFailure = null;
+        for (Placement placement : placements) {
+            try {
+                switch (placement) {
+                    case MOVE:
+                        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                        break;
+                    case LINK:
+                        Files.createLink(target, source);
+                        // the tempfile must not stay a second name of the placed file
+                        try {
+                            Files.delete(source);
+                        } catch (IOException e) {
+                            Files.deleteIfExists(target);
+                            throw e;
+                        }
+                        break;
+                    default:
+                        copyDigest = newMessageDigest();
+                        copyFile(source, target, copyDigest);
+                }
+                placed = placement;
+                break;
+            } catch (IOException | UnsupportedOperationException e) {
+                log.debug("Cannot place {} at {} ({}): {}", source, target, placement, e.getMessage());
+                lastFailure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+            }
+        }
+        if (placed == null) {
+            throw lastFailure;
+        }
+        log.debug("Placed {} at {} ({})", source, target, placed);
+
+        // once the file has been placed, no other placement may touch it
+        URI uri = target.toUri().normalize();
+        String checksum;
+        try {
+            checksum = (copyDigest != null) ? toHex(copyDigest.digest()) : checksumOf(target, upload);
+        } catch (IOException e) {
+            revertPlacement(new PlacedFile(tempFilename, uri, placed, null));
+            throw e;
+        }
+        return new PlacedFile(tempFilename, uri, placed, checksum);
+    }
+
+    // Undoes a placement if the document referencing the file cannot be stored.
+    // A moved file or used up upload goes back to the tempfiles, so the client
+    // can try again.
+    public void revertPlacement(PlacedFile placedFile) throws IOException {
+        Path target = new File(placedFile.getUri()).toPath();
+        Path source = new File(tempfilesPath, placedFile.getTempFilename()).toPath();
+        if ((placedFile.getPlacement() == Placement.MOVE) || !Files.exists(source)) {
+            Files.move(target, source, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.deleteIfExists(target);
+        }
+        log.debug("Reverted placement of {} at {} ({})", placedFile.getTempFilename(), target,
+                placedFile.getPlacement());
+    }
+
+    public Upload createUpload() throws IOException {
+        pruneUploads();
+        String name = "upload-" + UUID.randomUUID();
+        Files.createFile(new File(tempfilesPath, name).toPath());
+        Upload upload = new Upload(name, 0, newMessageDigest());
+        uploads.put(name, upload);
+        return upload;
+    }
+
+    // Returns null for unknown uploads. After a restart, the state of an
+    // upload gets restored by reading what has been received so far.
+    public Upload getUpload(String name) throws IOException {
+        if (!UPLOAD_NAME.matcher(name).matches()) {
+            return null;
+        }
+        Path file = new File(tempfilesPath, name).toPath();
+        if (!Files.isRegularFile(file)) {
+            uploads.remove(name);
+            return null;
+        }
+        Upload upload = uploads.get(name);
+        if (upload == null) {
+            MessageDigest digest = newMessageDigest();
+            digestFile(file, digest);
+            upload = new Upload(name, Files.size(file), digest);
+            Upload existing = uploads.putIfAbsent(name, upload);
+            if (existing != null) upload = existing;
+        }
+        return upload;
+    }
+
+    // Chunks have to be sent in order, each one starting where the last one ended.
+    // If a chunk breaks off, the upload continues after the last complete buffer.
+    // The upload is claimed for the chunk instead of locked, so that its state can
+    // be read while the body is received.
+    public Upload appendToUpload(String name, long offset, InputStream in)
+            throws IOException, ResourceConflictException {
+        Upload upload = getUpload(name);
+        if (upload == null) {
+            return null;
+        }
+        synchronized (upload) {
+            if (upload.isClosed()) {
+                throw new ResourceConflictException("Upload " + name + " has been placed or expired");
+            }
+            if (upload.isAppending()) {
+                throw new ResourceConflictException("Upload " + name + " is receiving another chunk");
+            }
+            if (offset != upload.getSize()) {
+                throw new ResourceConflictException(
+                        "Upload " + name + " continues at offset " + upload.getSize() + ", not at " + offset);
+            }
+            upload.setAppending(true);
+        }
+        try {
+            Path file = new File(tempfilesPath, name).toPath();
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                out.position(offset);
+                ReadableByteChannel channel = Channels.newChannel(in);
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                try {
+                    while (channel.read(buffer) != -1) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
+                        upload.appended(buffer.array(), buffer.limit());
+                        buffer.clear();
+                    }
+                } finally {
+                    out.truncate(upload.getSize());
+                }
+            }
+        } finally {
+            upload.setAppending(false);
+        }
+        return upload;
+    }
+
+    // Uploads that have not been appended to for longer than the maximum age
+    // are considered abandoned and their tempfiles get deleted.
+    public void expireUploads() {
+        long expiry = System.currentTimeMillis() - uploadMaxAge;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tempfilesPath.toPath(), "upload-*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (UPLOAD_NAME.matcher(name).matches()) {
+                    expireUpload(name, file, expiry);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot expire uploads: {}", e.getMessage());
+        }
+        pruneUploads();
+    }
+
+    private void expireUpload(String name, Path file, long expiry) throws IOException {
+        Upload upload = uploads.get(name);
+        if (upload == null) {
+            if (Files.getLastModifiedTime(file).toMillis() < expiry) {
+                Files.deleteIfExists(file);
+                log.info("Expired upload {}", name);
+            }
+            return;
+        }
+        synchronized (upload) {
+            if (!upload.isClosed() && !upload.isAppending()
+                    && Files.getLastModifiedTime(file).toMillis() < expiry) {
+                upload.close();
+                uploads.remove(name);
+                Files.deleteIfExists(file);
+                log.info("Expired upload {}", name);
+            }
+        }
+    }
+
     public URI renameFileInTargetFileSpace(String filename, String newname, String qid) throws IOException {
         File sourceFile = new File(new File(documentsPath, qid), filename);
         File targetFile = new File(new File(documentsPath, qid), newname);
@@ -66,6 +366,91 @@ public class FileHandlingService {
         return nf;
     }
 
+    private void copyFile(Path source, Path target, MessageDigest digest) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target,
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer.array(), 0, buffer.limit());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    private void digestFile(Path file, MessageDigest digest) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    private String checksumOf(Path file, Upload upload) throws IOException {
+        if (upload != null) {
+            synchronized (upload) {
+                if (upload.getSize() == Files.size(file)) {
+                    return upload.getChecksum();
+                }
+            }
+        }
+        MessageDigest digest = newMessageDigest();
+        digestFile(file, digest);
+        return toHex(digest.digest());
+    }
+
+    private void pruneUploads() {
+        Iterator<String> it = uploads.keySet().iterator();
+        while (it.hasNext()) {
+            if (!new File(tempfilesPath, it.next()).isFile()) it.remove();
+        }
+    }
+
+    private MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(CHECKSUM_TYPE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hexDigits = "0123456789abcdef".toCharArray();
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i * 2] = hexDigits[(bytes[i] >> 4) & 0xf];
+            result[i * 2 + 1] = hexDigits[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    private List<Placement> parsePlacements(String placement) throws Exception {
+        List<Placement> result = new ArrayList<>();
+        for (String s : placement.split(",")) {
+            if (s.trim().isEmpty()) continue;
+            try {
+                result.add(Placement.valueOf(s.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new Exception("Unknown file placement '" + s.trim() + "'. Allowed are " +
+                        Arrays.toString(Placement.values()));
+            }
+        }
+        if (result.isEmpty()) {
+            throw new Exception("No file placement configured");
+        }
+        return Collections.unmodifiableList(result);
+    }
+
     private void assertIsWriteable(File f) throws Exception {
         if (!f.canWrite()) {
             throw new Exception("Given path is not writeable: " + documentsPath);
@@ -77,4 +462,38 @@ public class FileHandlingService {
             throw new Exception("Given path is not a directory: " + documentsPath);
         }
     }
+
+    public static class PlacedFile {
+        private final String tempFilename;
+        private final URI uri;
+        private final Placement placement;
+        private final String checksum;
+
+        PlacedFile(String tempFilename, URI uri, Placement placement, String checksum) {
+            this.tempFilename = tempFilename;
+            this.uri = uri;
+            this.placement = placement;
+            this.checksum = checksum;
+        }
+
+        public String getTempFilename() {
+            return tempFilename;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        public Placement getPlacement() {
+            return placement;
+        }
+
+        public String getChecksumType() {
+            return CHECKSUM_TYPE;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+public class IngestJob {
+
+    public enum State {QUEUED, RUNNING, SUCCEEDED, FAILED}
+
+    private final String id;
+    private volatile String pid;
+    private final long submitted;
+    private volatile State state = State.QUEUED;
+    private volatile String step;
+    private volatile String message;
+    private volatile long finished = -1;
+
+    IngestJob(String id, String pid) {
+        this.id = id;
+        this.pid = pid;
+        this.submitted = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getStep() {
+        return step;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getFinished() {
+        return finished;
+    }
+
+    public boolean isFinished() {
+        return (state == State.SUCCEEDED) || (state == State.FAILED);
+    }
+
+    // a minted PID that turns out to be taken gets replaced by the next one
+    void assignPid(String pid) {
+        this.pid = pid;
+    }
+
+    void step(String step) {
+        this.step = step;
+    }
+
+    void start() {
+        state = State.RUNNING;
+    }
+
+    void succeed() {
+        finished = System.currentTimeMillis();
+        state = State.SUCCEEDED;
+    }
+
+    void fail(String message) {
+        this.message = message;
+        finished = System.currentTimeMillis();
+        state = State.FAILED;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class IngestJobService {
+
+    private final Logger log = LoggerFactory.getLogger(IngestJobService.class);
+    private final TaskExecutor ingestExecutor;
+    private final long retentionMillis;
+    private final ConcurrentHashMap<String, IngestJob> jobs = new ConcurrentHashMap<>();
+
+    public IngestJobService(TaskExecutor ingestExecutor, long retentionMillis) {
+        this.ingestExecutor = ingestExecutor;
+        this.retentionMillis = retentionMillis;
+    }
+
+    public IngestJob submit(String pid, final IngestWork work) throws TaskRejectedException {
+        removeExpiredJobs();
+        final IngestJob job = new IngestJob(UUID.randomUUID().toString(), pid);
+        jobs.put(job.getId(), job);
+        try {
+            ingestExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    job.start();
+                    try {
+                        work.run(job);
+                        job.succeed();
+                    } catch (Throwable t) {
+                        log.error("Ingest job {} for '{}' failed: {}", job.getId(), job.getPid(), t.getMessage());
+                        job.fail(t.getMessage());
+                    }
+                }
+            });
+        } catch (TaskRejectedException e) {
+            jobs.remove(job.getId());
+            throw e;
+        }
+        return job;
+    }
+
+    public IngestJob get(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    private void removeExpiredJobs() {
+        long expiredBefore = System.currentTimeMillis() - retentionMillis;
+        Iterator<IngestJob> it = jobs.values().iterator();
+        while (it.hasNext()) {
+            IngestJob job = it.next();
+            if (job.isFinished() && (job.getFinished() < expiredBefore)) it.remove();
+        }
+    }
+
+    public interface IngestWork {
+        void run(IngestJob job) throws Exception;
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+import com.yourmediashelf.fedora.client.FedoraClientException;
+import de.qucosa.fedora.FedoraRepository;
+import de.qucosa.util.XMLToolkit;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.*;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+class OpusDocumentStreamFilter {
+
+    private static final QName ID_ATTRIBUTE = new QName("id");
+
+    private final XMLInputFactory xmlInputFactory;
+    private final XMLOutputFactory xmlOutputFactory;
+    private final XMLEventFactory xmlEventFactory;
+    private final FedoraRepository fedoraRepository;
+    private final String pid;
+    private Set<String> datastreamIds;
+
+    public OpusDocumentStreamFilter(
+            XMLToolkit xmlToolkit,
+            FedoraRepository fedoraRepository,
+            String pid) {
+        this.xmlInputFactory = xmlToolkit.xmlInputFactory();
+        this.xmlOutputFactory = xmlToolkit.xmlOutputFactory();
+        this.xmlEventFactory = xmlToolkit.xmlEventFactory();
+        this.fedoraRepository = fedoraRepository;
+        this.pid = pid;
+    }
+
+    public void filter(InputStream in, OutputStream out) throws XMLStreamException, FedoraClientException {
+        filter(in, out, false);
+    }
+
+    public void filterDocumentElement(InputStream in, OutputStream out) throws XMLStreamException, FedoraClientException {
+        filter(in, out, true);
+    }
+
+    private void filter(InputStream in, OutputStream out, boolean documentElementOnly)
+            throws XMLStreamException, FedoraClientException {
+        XMLEventReader r = xmlInputFactory.createXMLEventReader(in);
+        XMLEventWriter w = xmlOutputFactory.createXMLEventWriter(out, "UTF-8");
+        try {
+            int depth = 0;
+            boolean inOpusDocument = false;
+            while (r.hasNext()) {
+                XMLEvent e = r.nextEvent();
+                switch (e.getEventType()) {
+                    case XMLStreamConstants.START_DOCUMENT:
+                        if (!documentElementOnly) {
+                            w.add(xmlEventFactory.createStartDocument("UTF-8", "1.0"));
+                        }
+                        break;
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 2) {
+                            inOpusDocument = e.asStartElement().getName().getLocalPart().equals("Opus_Document");
+                        } else if (depth == 3 && inOpusDocument) {
+                            if (r.peek().isEndElement() || isOrphanedFileElement(e.asStartElement())) {
+                                skipElement(r);
+                                depth--;
+                                break;
+                            }
+                        }
+                        if (!documentElementOnly || inOpusDocument) w.add(e);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (!documentElementOnly || inOpusDocument) w.add(e);
+                        if (depth == 2) inOpusDocument = false;
+                        depth--;
+                        break;
+                    default:
+                        // Opus_Document only keeps child elements, no text, comments or whitespace
+                        if (!(depth == 2 && inOpusDocument) && (!documentElementOnly || inOpusDocument)) {
+                            w.add(e);
+                        }
+                }
+            }
+            w.flush();
+        } finally {
+            r.close();
+            w.close();
+        }
+    }
+
+    private boolean isOrphanedFileElement(StartElement se) throws FedoraClientException {
+        if (!se.getName().getLocalPart().equals("File")) {
+            return false;
+        }
+        Attribute idAttr = se.getAttributeByName(ID_ATTRIBUTE);
+        if (idAttr == null) {
+            return true;
+        }
+        String dsid = DocumentResource.DSID_QUCOSA_ATT.concat(idAttr.getValue());
+        return !getDatastreamIds().contains(dsid);
+    }
+
+    private Set<String> getDatastreamIds() throws FedoraClientException {
+        // fetch the datastream listing once, and only if there are File elements at all
+        if (datastreamIds == null) {
+            datastreamIds = fedoraRepository.getDatastreamIds(pid);
+        }
+        return datastreamIds;
+    }
+
+    private void skipElement(XMLEventReader r) throws XMLStreamException {
+        int level = 1;
+        while (level > 0 && r.hasNext()) {
+            XMLEvent e = r.nextEvent();
+            if (e.isStartElement()) level++;
+            else if (e.isEndElement()) level--;
+        }
+    }
+
+}
@@ -20,6 +20,7 @@ package de.qucosa.webapi.v1;
 import com.yourmediashelf.fedora.client.FedoraClientException;
 import de.qucosa.fedora.FedoraRepository;
 import de.qucosa.util.Tuple;
+import de.qucosa.util.XMLToolkit;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
 import org.springframework.http.HttpStatus;
@@ -43,10 +44,12 @@ import java.util.List;
 class RelationResource {
 
     final private FedoraRepository fedoraRepository;
+    final private XMLOutputFactory xmlOutputFactory;
 
     @Autowired
-    public RelationResource(FedoraRepository fedoraRepository) {
+    public RelationResource(FedoraRepository fedoraRepository, XMLToolkit xmlToolkit) {
         this.fedoraRepository = fedoraRepository;
+        this.xmlOutputFactory = xmlToolkit.xmlOutputFactory();
     }
 
     @RequestMapping(value = "/relation/urn/{URN}", method = RequestMethod.GET)
@@ -57,7 +60,6 @@ class RelationResource {
         List<Tuple<String>> constituentSuccessorPids = fedoraRepository.getSuccessorPIDs(pid, FedoraRepository.RELATION_CONSTITUENT);
         List<Tuple<String>> derivativeSuccessorPids = fedoraRepository.getSuccessorPIDs(pid, FedoraRepository.RELATION_DERIVATIVE);
 
-        XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newFactory();
         StringWriter sw = new StringWriter();
         XMLStreamWriter w = xmlOutputFactory.createXMLStreamWriter(sw);
         w.writeStartDocument("UTF-8", "1.0");
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+@ManagedResource(objectName = "de.qucosa:type=RenderedDocumentCache", description = "Cache of rendered documents")
+public class RenderedDocumentCache {
+
+    // Invalidations count up a generation, so that a rendering that started before
+    // does not get stored afterwards. PIDs share a fixed number of generations,
+    // which at worst keeps an unrelated rendering out of the cache.
+    private static final int GENERATIONS = 1024;
+
+    private final Logger log = LoggerFactory.getLogger(RenderedDocumentCache.class);
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final long[] generations = new long[GENERATIONS];
+    private long currentBytes = 0;
+
+    public RenderedDocumentCache(long maxBytes, int maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+    }
+
+    public byte[] get(String pid, String etag) {
+        if (etag == null) return null;
+        synchronized (entries) {
+            Entry entry = entries.get(pid);
+            if (entry != null) {
+                if (entry.etag.equals(etag)) {
+                    hits.incrementAndGet();
+                    return entry.body;
+                }
+                // stale, document has been modified elsewhere
+                remove(pid);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // to be read before the document gets rendered
+    public long generation(String pid) {
+        synchronized (entries) {
+            return generations[generationOf(pid)];
+        }
+    }
+
+    public void put(String pid, String etag, byte[] body) {
+        put(pid, etag, generation(pid), body);
+    }
+
+    public void put(String pid, String etag, long generation, byte[] body) {
+        if ((etag == null) || (body == null) || (body.length > maxEntryBytes)) return;
+        synchronized (entries) {
+            if (generations[generationOf(pid)] != generation) {
+                log.debug("Not caching {}, it has been invalidated while rendering", pid);
+                return;
+            }
+            remove(pid);
+            entries.put(pid, new Entry(etag, body));
+            currentBytes += body.length;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while ((currentBytes > maxBytes) && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                currentBytes -= eldest.body.length;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public void invalidate(String pid) {
+        synchronized (entries) {
+            generations[generationOf(pid)]++;
+            remove(pid);
+        }
+    }
+
+    public OutputStream capture(OutputStream target) {
+        return new CapturingOutputStream(target, maxEntryBytes);
+    }
+
+    public void putCaptured(String pid, String etag, long generation, OutputStream capturingStream) {
+        if (capturingStream instanceof CapturingOutputStream) {
+            put(pid, etag, generation, ((CapturingOutputStream) capturingStream).getCapturedBytes());
+        }
+    }
+
+    @ManagedAttribute(description = "Requests served from the cache")
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @ManagedAttribute(description = "Requests that had to render the document")
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @ManagedAttribute(description = "Entries evicted to stay within the size limit")
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @ManagedAttribute(description = "Bytes currently cached")
+    public long getSizeInBytes() {
+        synchronized (entries) {
+            return currentBytes;
+        }
+    }
+
+    @ManagedAttribute(description = "Documents currently cached")
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RenderedDocumentCache[entries=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                getEntryCount(), getSizeInBytes(), maxBytes, getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+    private int generationOf(String pid) {
+        int h = pid.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATIONS - 1);
+    }
+
+    private void remove(String pid) {
+        Entry old = entries.remove(pid);
+        if (old != null) {
+            currentBytes -= old.body.length;
+            log.debug("Removed {} from document cache", pid);
+        }
+    }
+
+    private static class Entry {
+        final String etag;
+        final byte[] body;
+
+        Entry(String etag, byte[] body) {
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    // Writes through to the target and keeps a copy as long as it fits into a cache entry
+    private static class CapturingOutputStream extends OutputStream {
+        private final OutputStream target;
+        private final int limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CapturingOutputStream(OutputStream target, int limit) {
+            this.target = target;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+            if (copy != null) {
+                copy.write(b);
+                if (copy.size() > limit) copy = null;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            if (copy != null) {
+                if (copy.size() + len > limit) {
+                    copy = null;
+                } else {
+                    copy.write(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+
+        byte[] getCapturedBytes() {
+            return (copy == null) ? null : copy.toByteArray();
+        }
+    }
+
+}
@@ -17,6 +17,7 @@
 
 package de.qucosa.webapi.v1;
 
+import de.qucosa.util.XMLToolkit;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
@@ -134,9 +135,9 @@ public class SearchResource {
     private HttpServletRequest httpServletRequest;
 
     @Autowired
-    public SearchResource(Client elasticSearchClient) {
+    public SearchResource(Client elasticSearchClient, XMLToolkit xmlToolkit) {
         this.elasticSearchClient = elasticSearchClient;
-        xmlOutputFactory = XMLOutputFactory.newFactory();
+        xmlOutputFactory = xmlToolkit.xmlOutputFactory();
     }
 
     @RequestMapping(value = "/search", method = RequestMethod.GET)
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.qucosa.webapi.v1;
+
+import java.security.MessageDigest;
+
+public class Upload {
+
+    private final String name;
+    private final MessageDigest digest;
+    private long size;
+    private boolean closed;
+    private boolean appending;
+
+    Upload(String name, long size, MessageDigest digest) {
+        this.name = name;
+        this.size = size;
+        this.digest = digest;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public String getChecksumType() {
+        return FileHandlingService.CHECKSUM_TYPE;
+    }
+
+    // checksum of the bytes received so far, the running digest stays untouched
+    public synchronized String getChecksum() {
+        try {
+            return FileHandlingService.toHex(((MessageDigest) digest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // closed uploads have been placed or expired, they take no more appends
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void close() {
+        closed = true;
+    }
+
+    // set while a chunk is received, the upload neither takes another one nor gets placed meanwhile
+    synchronized boolean isAppending() {
+        return appending;
+    }
+
+    synchronized void setAppending(boolean appending) {
+        this.appending = appending;
+    }
+
+    synchronized void appended(byte[] bytes, int length) {
+        digest.update(bytes, 0, length);
+        size += length;
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.qucosa.webapi.v1;
+
+import de.qucosa.util.XMLToolkit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+
+@RestController
+@RequestMapping(produces = {"application/xml; charset=UTF-8",
+        "application/vnd.slub.qucosa-v1+xml; charset=UTF-8"})
+class UploadResource {
+
+    final private FileHandlingService fileHandlingService;
+    final private XMLOutputFactory xmlOutputFactory;
+
+    @Autowired
+    public UploadResource(FileHandlingService fileHandlingService, XMLToolkit xmlToolkit) {
+        this.fileHandlingService = fileHandlingService;
+        this.xmlOutputFactory = xmlToolkit.xmlOutputFactory();
+    }
+
+    @RequestMapping(value = "/upload", method = RequestMethod.POST)
+    public ResponseEntity<String> createUpload(HttpServletRequest request) throws IOException, XMLStreamException {
+        Upload upload = fileHandlingService.createUpload();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setLocation(URI.create(getHrefLink(request, upload)));
+        return new ResponseEntity<>(getUploadResponse(request, upload, null), headers, HttpStatus.CREATED);
+    }
+
+    @RequestMapping(value = "/upload/{name}", method = RequestMethod.GET)
+    public ResponseEntity<String> getUpload(@PathVariable String name, HttpServletRequest request)
+            throws IOException, XMLStreamException {
+        Upload upload = fileHandlingService.getUpload(name);
+        if (upload == null) {
+            return new ResponseEntity<>(getUploadResponse(request, null, "Upload " + name + " not found."),
+                    HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(getUploadResponse(request, upload, null), HttpStatus.OK);
+    }
+
+    // The request body gets streamed to the tempfile, so chunks never end up on the heap.
+    @RequestMapping(value = "/upload/{name}", method = RequestMethod.PUT)
+    public ResponseEntity<String> appendToUpload(
+            @PathVariable String name,
+            @RequestParam(value = "offset") long offset,
+            HttpServletRequest request) throws IOException, XMLStreamException {
+        try {
+            Upload upload = fileHandlingService.appendToUpload(name, offset, request.getInputStream());
+            if (upload == null) {
+                return new ResponseEntity<>(getUploadResponse(request, null, "Upload " + name + " not found."),
+                        HttpStatus.NOT_FOUND);
+            }
+            return new ResponseEntity<>(getUploadResponse(request, upload, null), HttpStatus.OK);
+        } catch (ResourceConflictException e) {
+            return new ResponseEntity<>(
+                    getUploadResponse(request, fileHandlingService.getUpload(name), e.getMessage()),
+                    HttpStatus.CONFLICT);
+        }
+    }
+
+    private String getUploadResponse(HttpServletRequest request, Upload upload, String errorMessage)
+            throws XMLStreamException {
+        StringWriter sw = new StringWriter();
+        XMLStreamWriter w = xmlOutputFactory.createXMLStreamWriter(sw);
+        w.writeStartDocument("UTF-8", "1.0");
+        w.writeStartElement("Opus");
+        if (upload != null) {
+            w.writeStartElement("Upload");
+            w.writeNamespace(DocumentResource.XLINK_NAMESPACE_PREFIX, DocumentResource.XLINK_NAMESPACE);
+            w.writeAttribute(DocumentResource.XLINK_NAMESPACE, "href", getHrefLink(request, upload));
+            w.writeAttribute("name", upload.getName());
+            w.writeAttribute("size", String.valueOf(upload.getSize()));
+            w.writeStartElement("HashValue");
+            w.writeStartElement("Type");
+            w.writeCharacters(upload.getChecksumType());
+            w.writeEndElement();
+            w.writeStartElement("Value");
+            w.writeCharacters(upload.getChecksum());
+            w.writeEndElement();
+            w.writeEndElement();
+            w.writeEndElement();
+        }
+        if (errorMessage != null) {
+            w.writeStartElement("Error");
+            w.writeAttribute("message", errorMessage);
+            w.writeEndElement();
+        }
+        w.writeEndElement();
+        w.writeEndDocument();
+        w.flush();
+        return sw.toString();
+    }
+
+    private String getHrefLink(HttpServletRequest request, Upload upload) {
+        return new StringBuilder()
+                .append(request.getScheme())
+                .append("://")
+                .append(request.getServerName())
+                .append(":")
+                .append(request.getServerPort())
+                .append(request.getContextPath())
+                .append("/upload/")
+                .append(upload.getName())
+                .toString();
+    }
+
+}
@@ -31,6 +31,7 @@ import org.xml.sax.SAXException;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -166,6 +167,23 @@ public class FedoraObjectBuilderTest {
                 + INFO_FEDORA_FEDORA_SYSTEM_DEF_MODEL_STATE + "']/@VALUE", testDocument);
     }
 
+    @Test
+    public void addsExternalReferenceDatastream() throws Exception {
+        fedoraObjectBuilder.addExternalReference("QUCOSA-ATT-1", "Volltextdokument (PDF)",
+                URI.create("file:/opt/qucosa/documents/4711/a.pdf"), "application/pdf", "A", "SHA-512", "cf83e135");
+        Document testDocument = XMLUnit.buildTestDocument(serialize(fedoraObjectBuilder));
+
+        XMLAssert.assertXpathExists("//fox:datastream[@ID='QUCOSA-ATT-1' and @CONTROL_GROUP='E' and @STATE='A' and @VERSIONABLE='false']", testDocument);
+        XMLAssert.assertXpathExists("//fox:datastreamVersion[@ID='QUCOSA-ATT-1.0' and @LABEL='Volltextdokument (PDF)' and @MIMETYPE='application/pdf']", testDocument);
+        XMLAssert.assertXpathEvaluatesTo("file:/opt/qucosa/documents/4711/a.pdf", "//fox:datastreamVersion[@ID='QUCOSA-ATT-1.0']/fox:contentLocation[@TYPE='URL']/@REF", testDocument);
+        XMLAssert.assertXpathEvaluatesTo("cf83e135", "//fox:datastreamVersion[@ID='QUCOSA-ATT-1.0']/fox:contentDigest[@TYPE='SHA-512']/@DIGEST", testDocument);
+    }
+
+    @Test(expected = FedoraObjectBuilderException.class)
+    public void rejectsExternalReferenceWithIllegalState() throws Exception {
+        fedoraObjectBuilder.addExternalReference("QUCOSA-ATT-1", "", URI.create("file:/a.pdf"), null, "X", null, null);
+    }
+
     private String serialize(FedoraObjectBuilder fob) throws ParserConfigurationException, IOException {
         DigitalObjectDocument d = fob.build();
         StringWriter sw = new StringWriter();
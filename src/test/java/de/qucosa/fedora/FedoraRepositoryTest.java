@@ -21,16 +21,21 @@ import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraClientException;
 import com.yourmediashelf.fedora.client.request.*;
 import com.yourmediashelf.fedora.client.response.*;
+import com.yourmediashelf.fedora.generated.access.DatastreamType;
 import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
+import com.yourmediashelf.fedora.generated.management.PidList;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
@@ -87,6 +92,33 @@ public class FedoraRepositoryTest {
         assertEquals("qucosa:4711", newPid);
     }
 
+    @Test
+    public void mintsBlockOfPids() throws Exception {
+        PidList pidList = new PidList();
+        pidList.getPid().addAll(Arrays.asList("qucosa:1", "qucosa:2", "qucosa:3"));
+        GetNextPIDResponse mockGetNextPidResponse = mock(GetNextPIDResponse.class);
+        when(mockGetNextPidResponse.getPids()).thenReturn(pidList);
+        when(fedoraClient.execute(any(GetNextPID.class))).thenReturn(mockGetNextPidResponse);
+
+        List<String> pids = fedoraRepository.mintPids("qucosa", 3);
+
+        assertEquals(Arrays.asList("qucosa:1", "qucosa:2", "qucosa:3"), pids);
+    }
+
+    @Test
+    public void mintsPidFromPool() throws Exception {
+        PidList pidList = new PidList();
+        pidList.getPid().addAll(Arrays.asList("qucosa:1", "qucosa:2"));
+        GetNextPIDResponse mockGetNextPidResponse = mock(GetNextPIDResponse.class);
+        when(mockGetNextPidResponse.getPids()).thenReturn(pidList);
+        when(fedoraClient.execute(any(GetNextPID.class))).thenReturn(mockGetNextPidResponse);
+        fedoraRepository = new FedoraRepository(fedoraClient, null, new PIDPool(new SyncTaskExecutor(), 2, 0));
+
+        assertEquals("qucosa:1", fedoraRepository.mintPid("qucosa"));
+        assertEquals("qucosa:2", fedoraRepository.mintPid("qucosa"));
+        verify(fedoraClient, times(1)).execute(any(GetNextPID.class));
+    }
+
     @Test
     public void modifiesObjectMetadata() throws Exception {
         FedoraResponse mockResponse = mock(FedoraResponse.class);
@@ -107,6 +139,93 @@ public class FedoraRepositoryTest {
         assertTrue(fedoraRepository.hasDatastream("test:1", "TEST-DS"));
     }
 
+    @Test
+    public void listsDatastreamIdsInOneRequest() throws Exception {
+        DatastreamType ds1 = new DatastreamType();
+        ds1.setDsid("QUCOSA-XML");
+        DatastreamType ds2 = new DatastreamType();
+        ds2.setDsid("QUCOSA-ATT-1");
+        ListDatastreamsResponse mockResponse = mock(ListDatastreamsResponse.class);
+        when(mockResponse.getDatastreams()).thenReturn(Arrays.asList(ds1, ds2));
+        when(fedoraClient.execute(any(ListDatastreams.class))).thenReturn(mockResponse);
+
+        Set<String> dsids = fedoraRepository.getDatastreamIds("qucosa:4711");
+
+        assertEquals(new HashSet<>(Arrays.asList("QUCOSA-XML", "QUCOSA-ATT-1")), dsids);
+        verify(fedoraClient, times(1)).execute(any(ListDatastreams.class));
+    }
+
+    @Test
+    public void streamsPIDsFromResourceIndex() throws Exception {
+        RiSearchResponse mockResponse = mock(RiSearchResponse.class);
+        when(mockResponse.getEntityInputStream()).thenReturn(
+                IOUtils.toInputStream("\"pid\"\nqucosa:1\nqucosa:2\n"));
+        when(fedoraClient.execute(any(RiSearch.class))).thenReturn(mockResponse);
+
+        final List<String> pids = new ArrayList<>();
+        fedoraRepository.streamPIDsByPattern("^qucosa:", 0, 10, new FedoraRepository.PIDHandler<RuntimeException>() {
+            @Override
+            public void handle(String pid) {
+                pids.add(pid);
+            }
+        });
+
+        assertEquals(Arrays.asList("qucosa:1", "qucosa:2"), pids);
+        verify(mockResponse).close();
+    }
+
+    @Test
+    public void streamsPIDsFromLoadedIndexWithoutQueryingResourceIndex() throws Exception {
+        PIDIndex pidIndex = new PIDIndex("^qucosa:");
+        pidIndex.beginReconcile();
+        pidIndex.completeReconcile(Arrays.asList("qucosa:1", "qucosa:2"));
+        fedoraRepository = new FedoraRepository(fedoraClient, pidIndex);
+
+        final List<String> pids = new ArrayList<>();
+        fedoraRepository.streamPIDsByPattern("^qucosa:", 1, 10, new FedoraRepository.PIDHandler<RuntimeException>() {
+            @Override
+            public void handle(String pid) {
+                pids.add(pid);
+            }
+        });
+
+        assertEquals(Arrays.asList("qucosa:2"), pids);
+        verify(fedoraClient, never()).execute(any(RiSearch.class));
+    }
+
+    @Test
+    public void queriesResourceIndexIfIndexIsOutdated() throws Exception {
+        PIDIndex pidIndex = new PIDIndex("^qucosa:", 0);
+        pidIndex.beginReconcile();
+        pidIndex.completeReconcile(Arrays.asList("qucosa:1"));
+        Thread.sleep(5);
+        fedoraRepository = new FedoraRepository(fedoraClient, pidIndex);
+        RiSearchResponse mockResponse = mock(RiSearchResponse.class);
+        when(mockResponse.getEntityInputStream()).thenReturn(IOUtils.toInputStream("\"pid\"\nqucosa:2\n"));
+        when(fedoraClient.execute(any(RiSearch.class))).thenReturn(mockResponse);
+
+        final List<String> pids = new ArrayList<>();
+        fedoraRepository.streamPIDsByPattern("^qucosa:", 0, -1, new FedoraRepository.PIDHandler<RuntimeException>() {
+            @Override
+            public void handle(String pid) {
+                pids.add(pid);
+            }
+        });
+
+        assertEquals(Arrays.asList("qucosa:2"), pids);
+    }
+
+    @Test
+    public void purgeRemovesPIDFromIndex() throws Exception {
+        PIDIndex pidIndex = new PIDIndex("^qucosa:");
+        pidIndex.add("qucosa:1");
+        fedoraRepository = new FedoraRepository(fedoraClient, pidIndex);
+
+        fedoraRepository.purge("qucosa:1");
+
+        assertFalse(pidIndex.contains("qucosa:1"));
+    }
+
     @Test
     public void triggersUpdatesDatastreamProfile() throws Exception {
         DatastreamProfile mockDSProfile = mock(DatastreamProfile.class);
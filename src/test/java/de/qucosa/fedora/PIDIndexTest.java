@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.fedora;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PIDIndexTest {
+
+    private PIDIndex pidIndex;
+
+    @Before
+    public void setUp() {
+        pidIndex = new PIDIndex("^qucosa:");
+    }
+
+    @Test
+    public void isNotLoadedBeforeFirstReconcile() {
+        pidIndex.add("qucosa:1");
+
+        assertFalse(pidIndex.isLoaded());
+    }
+
+    @Test
+    public void ignoresPIDsNotMatchingPattern() {
+        pidIndex.add("other:1");
+
+        assertFalse(pidIndex.contains("other:1"));
+    }
+
+    @Test
+    public void isNotCurrentOnceReconcileIsOverdue() {
+        PIDIndex index = new PIDIndex("^qucosa:", 1000);
+        index.beginReconcile();
+        index.completeReconcile(Arrays.asList("qucosa:1"));
+        long reconciled = index.getLastReconciled();
+
+        assertTrue(index.isCurrent(reconciled + 1000));
+        assertFalse(index.isCurrent(reconciled + 1001));
+    }
+
+    @Test
+    public void failedReconcileDoesNotRenewIndex() {
+        PIDIndex index = new PIDIndex("^qucosa:", 1000);
+        index.beginReconcile();
+        index.completeReconcile(Arrays.asList("qucosa:1"));
+        long reconciled = index.getLastReconciled();
+        index.beginReconcile();
+        index.abortReconcile();
+
+        assertEquals(reconciled, index.getLastReconciled());
+        assertFalse(index.isCurrent(reconciled + 1001));
+    }
+
+    @Test
+    public void withoutMaximumAgeLoadedIndexStaysCurrent() {
+        pidIndex.beginReconcile();
+        pidIndex.completeReconcile(Arrays.asList("qucosa:1"));
+
+        assertTrue(pidIndex.isCurrent(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void reconcileReplacesContent() {
+        pidIndex.add("qucosa:1");
+        pidIndex.beginReconcile();
+        pidIndex.completeReconcile(Arrays.asList("qucosa:2", "qucosa:3"));
+
+        assertTrue(pidIndex.isLoaded());
+        assertEquals(Arrays.asList("qucosa:2", "qucosa:3"), list(0, -1));
+    }
+
+    @Test
+    public void keepsChangesMadeDuringReconcile() {
+        pidIndex.beginReconcile();
+        pidIndex.add("qucosa:4");
+        pidIndex.completeReconcile(Arrays.asList("qucosa:1", "qucosa:2"));
+        pidIndex.beginReconcile();
+        pidIndex.remove("qucosa:1");
+        pidIndex.completeReconcile(Arrays.asList("qucosa:1", "qucosa:2", "qucosa:4"));
+
+        assertEquals(Arrays.asList("qucosa:2", "qucosa:4"), list(0, -1));
+    }
+
+    @Test
+    public void pagesInPIDOrder() {
+        pidIndex.beginReconcile();
+        pidIndex.completeReconcile(Arrays.asList("qucosa:3", "qucosa:1", "qucosa:2", "qucosa:4"));
+
+        assertEquals(Arrays.asList("qucosa:2", "qucosa:3"), list(1, 2));
+    }
+
+    private List<String> list(int offset, int limit) {
+        final List<String> result = new ArrayList<>();
+        pidIndex.forEach(offset, limit, new FedoraRepository.PIDHandler<RuntimeException>() {
+            @Override
+            public void handle(String pid) {
+                result.add(pid);
+            }
+        });
+        return result;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.qucosa.fedora;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PIDPoolTest {
+
+    private CountingPIDSource source;
+
+    @Before
+    public void setUp() {
+        source = new CountingPIDSource();
+    }
+
+    @Test
+    public void handsOutReservedPIDs() throws Exception {
+        PIDPool pool = new PIDPool(new SyncTaskExecutor(), 3, 0);
+
+        assertEquals("qucosa:1", pool.take("qucosa", source));
+        assertEquals("qucosa:2", pool.take("qucosa", source));
+        assertEquals("qucosa:3", pool.take("qucosa", source));
+        assertEquals(1, source.requests);
+    }
+
+    @Test
+    public void mintsNextBlockWhenEmpty() throws Exception {
+        PIDPool pool = new PIDPool(new SyncTaskExecutor(), 2, 0);
+
+        pool.take("qucosa", source);
+        pool.take("qucosa", source);
+        assertEquals("qucosa:3", pool.take("qucosa", source));
+        assertEquals(2, source.requests);
+    }
+
+    @Test
+    public void refillsBelowLowWaterMark() throws Exception {
+        PIDPool pool = new PIDPool(new SyncTaskExecutor(), 4, 2);
+
+        pool.take("qucosa", source);
+        pool.take("qucosa", source);
+        assertEquals(1, source.requests);
+
+        pool.take("qucosa", source);
+        assertEquals(2, source.requests);
+        assertEquals(5, pool.available("qucosa"));
+    }
+
+    @Test
+    public void keepsNamespacesApart() throws Exception {
+        PIDPool pool = new PIDPool(new SyncTaskExecutor(), 2, 0);
+
+        assertEquals("qucosa:1", pool.take("qucosa", source));
+        assertEquals("test:3", pool.take("test", source));
+    }
+
+    @Test
+    public void rejectedRefillIsRetriedLater() throws Exception {
+        final List<Runnable> accepted = new ArrayList<>();
+        PIDPool pool = new PIDPool(new TaskExecutor() {
+            private boolean reject = true;
+
+            @Override
+            public void execute(Runnable task) {
+                if (reject) {
+                    reject = false;
+                    throw new TaskRejectedException("busy");
+                }
+                accepted.add(task);
+            }
+        }, 4, 4);
+
+        pool.take("qucosa", source);
+        pool.take("qucosa", source);
+
+        assertEquals(1, accepted.size());
+    }
+
+    private static class CountingPIDSource implements PIDPool.PIDSource {
+        int next = 1;
+        int requests = 0;
+
+        @Override
+        public List<String> mintPids(String namespace, int count) {
+            requests++;
+            List<String> pids = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                pids.add(namespace + ":" + next++);
+            }
+            return pids;
+        }
+    }
+
+}
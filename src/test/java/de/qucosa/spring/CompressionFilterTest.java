@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.spring;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompressionFilterTest {
+
+    private static final String LARGE_BODY = repeat("<Document nr=\"4711\"/>", 200);
+
+    private CompressionFilter filter;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+
+    private static String repeat(String s, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) sb.append(s);
+        return sb.toString();
+    }
+
+    @Before
+    public void setUp() {
+        filter = new CompressionFilter(1024, 6);
+        request = new MockHttpServletRequest("GET", "/document");
+        response = new MockHttpServletResponse();
+    }
+
+    @Test
+    public void compressesLargeBodyIfGzipIsAccepted() throws Exception {
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+
+        filter.doFilter(request, response, writing(LARGE_BODY));
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(LARGE_BODY, IOUtils.toString(
+                new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray())), "UTF-8"));
+    }
+
+    @Test
+    public void appendsCodingToEntityTagOfCompressedBody() throws Exception {
+        request.addHeader("Accept-Encoding", "gzip");
+        response.setHeader("ETag", "\"cb961ca0c79086341cdc454ea627d975\"");
+
+        filter.doFilter(request, response, writing(LARGE_BODY));
+
+        assertEquals("\"cb961ca0c79086341cdc454ea627d975-gzip\"", response.getHeader("ETag"));
+    }
+
+    @Test
+    public void keepsEntityTagOfUncompressedBody() throws Exception {
+        request.addHeader("Accept-Encoding", "gzip");
+        response.setHeader("ETag", "\"cb961ca0c79086341cdc454ea627d975\"");
+
+        filter.doFilter(request, response, writing("<Opus/>"));
+
+        assertEquals("\"cb961ca0c79086341cdc454ea627d975\"", response.getHeader("ETag"));
+    }
+
+    @Test
+    public void doesNotCompressSmallBody() throws Exception {
+        request.addHeader("Accept-Encoding", "gzip");
+
+        filter.doFilter(request, response, writing("<Opus/>"));
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("<Opus/>", response.getContentAsString());
+    }
+
+    @Test
+    public void doesNotCompressWithoutAcceptEncoding() throws Exception {
+        filter.doFilter(request, response, writing(LARGE_BODY));
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(LARGE_BODY, response.getContentAsString());
+    }
+
+    @Test
+    public void respectsRejectedEncoding() throws Exception {
+        request.addHeader("Accept-Encoding", "gzip;q=0");
+
+        filter.doFilter(request, response, writing(LARGE_BODY));
+
+        assertNull(response.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void wildcardDoesNotMatchRejectedEncoding() throws Exception {
+        request.addHeader("Accept-Encoding", "gzip;q=0, *");
+
+        filter.doFilter(request, response, writing(LARGE_BODY));
+
+        assertEquals("deflate", response.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void doesNotCompressIfEveryEncodingIsRejected() throws Exception {
+        request.addHeader("Accept-Encoding", "gzip;q=0, deflate;q=0, *");
+
+        filter.doFilter(request, response, writing(LARGE_BODY));
+
+        assertNull(response.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void compressesRequestsThatSupportAsync() throws Exception {
+        request.addHeader("Accept-Encoding", "gzip");
+        request.setAsyncSupported(true);
+
+        filter.doFilter(request, response, writing(LARGE_BODY));
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(LARGE_BODY, IOUtils.toString(
+                new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray())), "UTF-8"));
+    }
+
+    @Test
+    public void finishesAsyncResponseOnCompletion() throws Exception {
+        request.addHeader("Accept-Encoding", "gzip");
+        request.setAsyncSupported(true);
+        final ServletResponse[] asyncResponse = new ServletResponse[1];
+
+        filter.doFilter(request, response, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                request.startAsync(request, response);
+                asyncResponse[0] = response;
+            }
+        });
+        asyncResponse[0].getOutputStream().write(LARGE_BODY.getBytes("UTF-8"));
+        request.getAsyncContext().complete();
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(LARGE_BODY, IOUtils.toString(
+                new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray())), "UTF-8"));
+    }
+
+    private FilterChain writing(final String body) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                response.getOutputStream().write(body.getBytes("UTF-8"));
+            }
+        };
+    }
+
+}
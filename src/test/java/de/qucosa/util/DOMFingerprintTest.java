@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.qucosa.util;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DOMFingerprintTest {
+
+    private final XMLToolkit xmlToolkit = new XMLToolkit();
+
+    @Test
+    public void ignoresIndentation() throws Exception {
+        assertSameFingerprint(
+                "<Opus version=\"2.0\"><Opus_Document><TitleMain><Value>Macbeth</Value></TitleMain></Opus_Document></Opus>",
+                "<Opus version=\"2.0\">\n  <Opus_Document>\n    <TitleMain>\n      <Value>Macbeth</Value>\n" +
+                        "    </TitleMain>\n  </Opus_Document>\n</Opus>\n");
+    }
+
+    @Test
+    public void ignoresAttributeOrderAndPrefixes() throws Exception {
+        assertSameFingerprint(
+                "<Opus xmlns:xlink=\"http://www.w3.org/1999/xlink\" version=\"2.0\" xlink:href=\"x\"/>",
+                "<Opus xmlns:l=\"http://www.w3.org/1999/xlink\" l:href=\"x\" version=\"2.0\"/>");
+    }
+
+    @Test
+    public void ignoresComments() throws Exception {
+        assertSameFingerprint(
+                "<Opus><Value>Mac<!-- comment -->beth</Value></Opus>",
+                "<Opus><Value>Macbeth</Value></Opus>");
+    }
+
+    @Test
+    public void detectsChangedText() throws Exception {
+        assertDifferentFingerprint(
+                "<Opus><Value>Macbeth</Value></Opus>",
+                "<Opus><Value>Hamlet</Value></Opus>");
+    }
+
+    @Test
+    public void detectsChangedAttribute() throws Exception {
+        assertDifferentFingerprint(
+                "<Opus version=\"2.0\"/>",
+                "<Opus version=\"2.1\"/>");
+    }
+
+    @Test
+    public void detectsReorderedElements() throws Exception {
+        assertDifferentFingerprint(
+                "<Opus><A/><B/></Opus>",
+                "<Opus><B/><A/></Opus>");
+    }
+
+    @Test
+    public void detectsTextMovedIntoChild() throws Exception {
+        assertDifferentFingerprint(
+                "<Opus>Macbeth<A/></Opus>",
+                "<Opus><A>Macbeth</A></Opus>");
+    }
+
+    @Test
+    public void ignoresFieldOrderOfUnorderedElements() throws Exception {
+        assertTrue(DOMFingerprint.equal(
+                DOMFingerprint.of(parse("<Opus><Opus_Document><A>1</A><B/><A>2</A></Opus_Document></Opus>"), "Opus_Document"),
+                DOMFingerprint.of(parse("<Opus><Opus_Document><B/><A>1</A><A>2</A></Opus_Document></Opus>"), "Opus_Document")));
+    }
+
+    @Test
+    public void keepsOrderOfEquallyNamedFields() throws Exception {
+        assertFalse(DOMFingerprint.equal(
+                DOMFingerprint.of(parse("<Opus><Opus_Document><A>1</A><A>2</A></Opus_Document></Opus>"), "Opus_Document"),
+                DOMFingerprint.of(parse("<Opus><Opus_Document><A>2</A><A>1</A></Opus_Document></Opus>"), "Opus_Document")));
+    }
+
+    private void assertSameFingerprint(String a, String b) throws Exception {
+        assertTrue(DOMFingerprint.equal(DOMFingerprint.of(parse(a)), DOMFingerprint.of(parse(b))));
+    }
+
+    private void assertDifferentFingerprint(String a, String b) throws Exception {
+        assertFalse(DOMFingerprint.equal(DOMFingerprint.of(parse(a)), DOMFingerprint.of(parse(b))));
+    }
+
+    private Document parse(String xml) throws Exception {
+        return xmlToolkit.documentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+}
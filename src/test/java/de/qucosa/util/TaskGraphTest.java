@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TaskGraphTest {
+
+    private ThreadPoolTaskExecutor executor;
+    private List<String> log;
+
+    @Before
+    public void setUp() {
+        executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(4);
+        executor.initialize();
+        log = Collections.synchronizedList(new LinkedList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void runsEveryTask() throws Exception {
+        TaskGraph graph = new TaskGraph(executor);
+        graph.add("a", record("a"));
+        graph.add("b", record("b"));
+
+        graph.run();
+
+        assertEquals(2, log.size());
+        assertTrue(log.contains("a") && log.contains("b"));
+    }
+
+    @Test
+    public void runsIndependentTasksConcurrently() throws Exception {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        TaskGraph.Task awaitOther = new TaskGraph.Task() {
+            @Override
+            public void run() throws Exception {
+                bothStarted.countDown();
+                if (!bothStarted.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Tasks did not run concurrently");
+                }
+            }
+        };
+        TaskGraph graph = new TaskGraph(executor);
+        graph.add("a", awaitOther);
+        graph.add("b", awaitOther);
+
+        graph.run();
+    }
+
+    @Test
+    public void runsTaskAfterItsDependencies() throws Exception {
+        TaskGraph graph = new TaskGraph(executor);
+        TaskGraph.Node a = graph.add("a", record("a"));
+        TaskGraph.Node b = graph.add("b", record("b"), a);
+        graph.add("c", record("c"), a, b);
+
+        graph.run();
+
+        assertEquals("[a, b, c]", log.toString());
+    }
+
+    @Test
+    public void skipsDependentsOfFailedTaskAndCompletesOthers() throws Exception {
+        TaskGraph graph = new TaskGraph(executor);
+        TaskGraph.Node failing = graph.add("failing", new TaskGraph.Task() {
+            @Override
+            public void run() throws Exception {
+                throw new IOException("failed");
+            }
+        });
+        TaskGraph.Node dependent = graph.add("dependent", record("dependent"), failing);
+        graph.add("transitive", record("transitive"), dependent);
+        graph.add("independent", record("independent"));
+
+        try {
+            graph.run();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals("[independent]", log.toString());
+    }
+
+    @Test
+    public void runsWithSynchronousExecutor() throws Exception {
+        TaskGraph graph = new TaskGraph(new TaskExecutorAdapter(new SyncTaskExecutor()));
+        TaskGraph.Node a = graph.add("a", record("a"));
+        graph.add("b", record("b"), a);
+
+        graph.run();
+
+        assertEquals("[a, b]", log.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDependencyFromOtherGraph() {
+        TaskGraph other = new TaskGraph(executor);
+        TaskGraph.Node foreign = other.add("foreign", record("foreign"));
+        new TaskGraph(executor).add("a", record("a"), foreign);
+    }
+
+    private TaskGraph.Task record(final String name) {
+        return new TaskGraph.Task() {
+            @Override
+            public void run() throws Exception {
+                log.add(name);
+            }
+        };
+    }
+
+}
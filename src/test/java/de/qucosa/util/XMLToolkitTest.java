@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.util;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.xpath.XPathConstants;
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class XMLToolkitTest {
+
+    private final XMLToolkit xmlToolkit = new XMLToolkit();
+
+    @Test
+    public void resolvesDublinCorePrefix() throws Exception {
+        Document doc = xmlToolkit.documentBuilder().parse(new ByteArrayInputStream(
+                "<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\" xmlns:ns=\"http://purl.org/dc/elements/1.1/\"><ns:identifier>urn:nbn:1</ns:identifier></oai_dc:dc>"
+                        .getBytes("UTF-8")));
+
+        assertEquals("urn:nbn:1", xmlToolkit.evaluate("//dc:identifier", doc));
+    }
+
+    @Test
+    public void resolvesVariablesInCompiledExpressions() throws Exception {
+        Document doc = xmlToolkit.documentBuilder().parse(new ByteArrayInputStream(
+                "<Opus_Document><File id=\"1\"><PathName>a.pdf</PathName></File><File id=\"2\"><PathName>b.pdf</PathName></File></Opus_Document>"
+                        .getBytes("UTF-8")));
+
+        assertEquals("a.pdf", xmlToolkit.evaluate("//File[@id=$id]/PathName", doc, XPathConstants.STRING,
+                Collections.singletonMap("id", "1")));
+        assertEquals("b.pdf", xmlToolkit.evaluate("//File[@id=$id]/PathName", doc, XPathConstants.STRING,
+                Collections.singletonMap("id", "2")));
+    }
+
+    @Test
+    public void reusesToolsWithinOneThread() {
+        assertSame(xmlToolkit.documentBuilder(), xmlToolkit.documentBuilder());
+    }
+
+    @Test
+    public void doesNotShareToolsBetweenThreads() throws Exception {
+        final AtomicReference<DocumentBuilder> otherBuilder = new AtomicReference<>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                otherBuilder.set(xmlToolkit.documentBuilder());
+            }
+        };
+        t.start();
+        t.join();
+
+        assertNotSame(xmlToolkit.documentBuilder(), otherBuilder.get());
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+import de.qucosa.fedora.FedoraRepository;
+import org.elasticsearch.client.Client;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration("classpath:testContext.xml")
+@WebAppConfiguration
+public class DocumentListingServiceTest {
+
+    @Autowired
+    private Client elasticSearchClient;
+
+    @Test
+    public void listsAllQucosaPIDsFromElasticSearch() throws Exception {
+        List<String> pids = listFromElasticSearch(0, -1);
+        Collections.sort(pids);
+
+        assertEquals(Arrays.asList("qucosa:10033", "qucosa:10044", "qucosa:10305", "qucosa:1071"), pids);
+    }
+
+    @Test
+    public void pagesPIDsFromElasticSearchInPIDOrder() throws Exception {
+        assertEquals(Arrays.asList("qucosa:10044", "qucosa:10305"), listFromElasticSearch(1, 2));
+    }
+
+    @Test
+    public void skipsOffsetWithoutLimit() throws Exception {
+        assertEquals(Arrays.asList("qucosa:10305", "qucosa:1071"), listFromElasticSearch(2, -1));
+    }
+
+    @Test
+    public void releasesScrollContextAfterListing() throws Exception {
+        listFromElasticSearch(0, -1);
+
+        assertEquals(0, openSearchContexts());
+    }
+
+    @Test
+    public void releasesScrollContextIfHandlerFails() throws Exception {
+        try {
+            new DocumentListingService(DocumentListingService.SOURCE_ELASTICSEARCH, elasticSearchClient)
+                    .streamPIDs(null, 0, -1, new FedoraRepository.PIDHandler<IOException>() {
+                        @Override
+                        public void handle(String pid) throws IOException {
+                            throw new IOException("Client disconnected");
+                        }
+                    });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals(0, openSearchContexts());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownSource() {
+        new DocumentListingService("solr", elasticSearchClient);
+    }
+
+    private long openSearchContexts() {
+        return elasticSearchClient.admin().indices().prepareStats().setSearch(true)
+                .execute().actionGet().getTotal().getSearch().getOpenContexts();
+    }
+
+    private List<String> listFromElasticSearch(int offset, int limit) throws Exception {
+        final List<String> result = new ArrayList<>();
+        new DocumentListingService(DocumentListingService.SOURCE_ELASTICSEARCH, elasticSearchClient)
+                .streamPIDs(null, offset, limit, new FedoraRepository.PIDHandler<RuntimeException>() {
+                    @Override
+                    public void handle(String pid) {
+                        result.add(pid);
+                    }
+                });
+        return result;
+    }
+
+}
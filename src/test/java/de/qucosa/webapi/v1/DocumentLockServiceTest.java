@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.*;
+
+public class DocumentLockServiceTest {
+
+    private DocumentLockService lockService;
+
+    @Before
+    public void setUp() {
+        lockService = new DocumentLockService(16, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStripeCountBelowOne() {
+        new DocumentLockService(0, 100);
+    }
+
+    @Test
+    public void roundsStripeCountUpToPowerOfTwo() {
+        DocumentLockService service = new DocumentLockService(10, 100);
+        for (int i = 0; i < 100; i++) {
+            int stripe = service.stripeOf("qucosa:" + i);
+            assertTrue(stripe >= 0 && stripe < 16);
+        }
+        assertTrue(service.toString().contains("stripes=16"));
+    }
+
+    @Test
+    public void lockIsReentrant() throws Exception {
+        Lock outer = lockService.lock("qucosa:1");
+        Lock inner = lockService.lock("qucosa:1");
+        inner.unlock();
+        outer.unlock();
+
+        assertEquals(2, lockService.getAcquisitionCount());
+        assertEquals(0, lockService.getContentionCount());
+    }
+
+    @Test
+    public void timesOutWhileDocumentIsLockedByAnotherThread() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> holder = executor.submit(holdLock(lockService, "qucosa:1", locked, release));
+            assertTrue(locked.await(5, TimeUnit.SECONDS));
+            try {
+                lockService.lock("qucosa:1");
+                fail("Expected ResourceConflictException");
+            } catch (ResourceConflictException e) {
+                assertEquals(1, lockService.getTimeoutCount());
+                assertEquals(1, lockService.getContentionCount());
+            }
+            release.countDown();
+            holder.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void acquiresLockOnceReleasedByAnotherThread() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        DocumentLockService service = new DocumentLockService(16, 5000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(holdLock(service, "qucosa:1", locked, release));
+            assertTrue(locked.await(5, TimeUnit.SECONDS));
+            release.countDown();
+            service.lock("qucosa:1").unlock();
+
+            assertEquals(0, service.getTimeoutCount());
+            assertEquals(2, service.getAcquisitionCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void documentsInDifferentStripesDoNotBlockEachOther() throws Exception {
+        String other = "qucosa:2";
+        for (int i = 2; lockService.stripeOf(other) == lockService.stripeOf("qucosa:1"); i++) {
+            other = "qucosa:" + i;
+        }
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(holdLock(lockService, "qucosa:1", locked, release));
+            assertTrue(locked.await(5, TimeUnit.SECONDS));
+            lockService.lock(other).unlock();
+
+            assertEquals(0, lockService.getContentionCount());
+            release.countDown();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<Void> holdLock(final DocumentLockService service, final String pid,
+                                    final CountDownLatch locked, final CountDownLatch release) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Lock lock = service.lock(pid);
+                try {
+                    locked.countDown();
+                    release.await();
+                } finally {
+                    lock.unlock();
+                }
+                return null;
+            }
+        };
+    }
+
+}
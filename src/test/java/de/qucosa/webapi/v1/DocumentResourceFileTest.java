@@ -20,6 +20,7 @@ package de.qucosa.webapi.v1;
 import com.yourmediashelf.fedora.client.FedoraClientException;
 import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
 import de.qucosa.fedora.FedoraRepository;
+import fedora.fedoraSystemDef.foxml.DigitalObjectDocument;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.custommonkey.xmlunit.SimpleNamespaceContext;
@@ -29,16 +30,22 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.util.NestedServletException;
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 
 import java.io.File;
@@ -49,12 +56,14 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 import static junit.framework.Assert.assertTrue;
 import static org.custommonkey.xmlunit.XMLAssert.assertXpathExists;
 import static org.custommonkey.xmlunit.XMLAssert.assertXpathNotExists;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -70,6 +79,8 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 @WebAppConfiguration
 public class DocumentResourceFileTest {
 
+    private static final String SHA512_OF_EMPTY_FILE = "cf83e1357eefb8bdf1542850d66d8007d620e4050b5715dc83f4a921d36ce9ce47d0d13c5d85f2b0ff8318d2877eec2f63b931bd47417a81a538327af927da3e";
+
     @Autowired
     public TemporaryFolder dataFolder;
 
@@ -208,13 +219,16 @@ public class DocumentResourceFileTest {
                 ))
                 .andExpect(status().isCreated());
 
-        verify(fedoraRepository).createExternalReferenceDatastream(
-                eq("qucosa:815"),
-                eq("QUCOSA-ATT-1"),
-                eq("Volltextdokument (PDF)"),
-                any(URI.class),
-                anyString(),
-                eq("A"));
+        Document foxml = ingestedFoxml();
+        assertXpathExists("/fox:digitalObject/fox:datastream[@ID='QUCOSA-ATT-1' and @CONTROL_GROUP='E' and @STATE='A']", foxml);
+        assertXpathExists("//fox:datastream[@ID='QUCOSA-ATT-1']/fox:datastreamVersion[@LABEL='Volltextdokument (PDF)']" +
+                "/fox:contentLocation[@TYPE='URL']", foxml);
+        verify(fedoraRepository, never()).createExternalReferenceDatastream(
+                anyString(), anyString(), anyString(), any(URI.class), anyString(), anyString(), anyString(), anyString());
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                anyString(), anyString(), anyString(), any(InputStream.class));
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                anyString(), anyString(), anyString(), any(InputStream.class), any(Date.class));
     }
 
     @Test
@@ -253,6 +267,211 @@ public class DocumentResourceFileTest {
         assertFileExists("815/trigger-test-2.pdf", dataFolder.getRoot());
     }
 
+    @Test
+    public void concurrentlyProcessedFilesKeepDocumentOrder() throws Exception {
+        tempFolder.newFile("tmp-815-1.pdf");
+        tempFolder.newFile("tmp-815-2.pdf");
+        tempFolder.newFile("tmp-815-3.pdf");
+
+        mockMvc.perform(post("/document")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "   <DocumentId>815</DocumentId>" +
+                                "   <TitleMain>" +
+                                "       <Value>Macbeth</Value>" +
+                                "   </TitleMain>" +
+                                "   <File>" +
+                                "       <PathName>order-test-1.pdf</PathName>" +
+                                "       <TempFile>tmp-815-1.pdf</TempFile>" +
+                                "   </File>" +
+                                "   <File>" +
+                                "       <PathName>order-test-2.pdf</PathName>" +
+                                "       <TempFile>tmp-815-2.pdf</TempFile>" +
+                                "   </File>" +
+                                "   <File>" +
+                                "       <PathName>order-test-3.pdf</PathName>" +
+                                "       <TempFile>tmp-815-3.pdf</TempFile>" +
+                                "   </File>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isCreated());
+
+        Document control = ingestedQucosaXml();
+
+        assertXpathExists("/Opus/Opus_Document/File[1][@id='1' and PathName='order-test-1.pdf']", control);
+        assertXpathExists("/Opus/Opus_Document/File[2][@id='2' and PathName='order-test-2.pdf']", control);
+        assertXpathExists("/Opus/Opus_Document/File[3][@id='3' and PathName='order-test-3.pdf']", control);
+        assertXpathNotExists("//TempFile", control);
+        Document foxml = ingestedFoxml();
+        assertXpathExists("//fox:datastream[@ID='QUCOSA-ATT-1']//fox:contentLocation[contains(@REF,'order-test-1.pdf')]", foxml);
+        assertXpathExists("//fox:datastream[@ID='QUCOSA-ATT-2']//fox:contentLocation[contains(@REF,'order-test-2.pdf')]", foxml);
+        assertXpathExists("//fox:datastream[@ID='QUCOSA-ATT-3']//fox:contentLocation[contains(@REF,'order-test-3.pdf')]", foxml);
+    }
+
+    @Test
+    public void failingFileAbortsIngest() throws Exception {
+        tempFolder.newFile("tmp-815-1.pdf");
+
+        try {
+            mockMvc.perform(post("/document")
+                    .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                    .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                    .content(
+                            "<Opus version=\"2.0\">" +
+                                    "<Opus_Document>" +
+                                    "   <DocumentId>815</DocumentId>" +
+                                    "   <TitleMain>" +
+                                    "       <Value>Macbeth</Value>" +
+                                    "   </TitleMain>" +
+                                    "   <File>" +
+                                    "       <PathName>rollback-test-1.pdf</PathName>" +
+                                    "       <TempFile>tmp-815-1.pdf</TempFile>" +
+                                    "   </File>" +
+                                    "   <File>" +
+                                    "       <PathName>rollback-test-2.pdf</PathName>" +
+                                    "       <TempFile>no-such-tempfile.pdf</TempFile>" +
+                                    "   </File>" +
+                                    "</Opus_Document>" +
+                                    "</Opus>"
+                    ));
+            fail("Expected failing ingest to be reported");
+        } catch (NestedServletException ignored) {
+        }
+
+        verify(fedoraRepository, never()).ingest(any(DigitalObjectDocument.class));
+    }
+
+    @Test
+    public void failingFileRestoresPlacedTempfiles() throws Exception {
+        tempFolder.newFile("tmp-815-1.pdf");
+
+        try {
+            mockMvc.perform(post("/document")
+                    .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                    .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                    .content(
+                            "<Opus version=\"2.0\">" +
+                                    "<Opus_Document>" +
+                                    "   <DocumentId>815</DocumentId>" +
+                                    "   <TitleMain>" +
+                                    "       <Value>Macbeth</Value>" +
+                                    "   </TitleMain>" +
+                                    "   <File>" +
+                                    "       <PathName>rollback-test-1.pdf</PathName>" +
+                                    "       <TempFile>tmp-815-1.pdf</TempFile>" +
+                                    "   </File>" +
+                                    "   <File>" +
+                                    "       <PathName>rollback-test-2.pdf</PathName>" +
+                                    "       <TempFile>no-such-tempfile.pdf</TempFile>" +
+                                    "   </File>" +
+                                    "</Opus_Document>" +
+                                    "</Opus>"
+                    ));
+            fail("Expected failing ingest to be reported");
+        } catch (NestedServletException ignored) {
+        }
+
+        assertFileExists("tmp-815-1.pdf", tempFolder.getRoot());
+        assertFileNotExists("815/rollback-test-1.pdf", dataFolder.getRoot());
+    }
+
+    @Test
+    public void failedIngestRestoresPlacedTempfiles() throws Exception {
+        tempFolder.newFile("tmp-815-1.pdf");
+        when(fedoraRepository.ingest(any(DigitalObjectDocument.class)))
+                .thenThrow(new FedoraClientException(500, "Internal Server Error"));
+
+        try {
+            mockMvc.perform(post("/document")
+                    .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                    .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                    .content(
+                            "<Opus version=\"2.0\">" +
+                                    "<Opus_Document>" +
+                                    "   <DocumentId>815</DocumentId>" +
+                                    "   <TitleMain>" +
+                                    "       <Value>Macbeth</Value>" +
+                                    "   </TitleMain>" +
+                                    "   <File>" +
+                                    "       <PathName>rollback-test-1.pdf</PathName>" +
+                                    "       <TempFile>tmp-815-1.pdf</TempFile>" +
+                                    "   </File>" +
+                                    "</Opus_Document>" +
+                                    "</Opus>"
+                    ));
+            fail("Expected failing ingest to be reported");
+        } catch (NestedServletException ignored) {
+        }
+
+        verify(fedoraRepository).purge("qucosa:815");
+        assertFileExists("tmp-815-1.pdf", tempFolder.getRoot());
+        assertFileNotExists("815/rollback-test-1.pdf", dataFolder.getRoot());
+    }
+
+    @Test
+    public void ingestWithPidInUseRestoresPlacedTempfiles() throws Exception {
+        tempFolder.newFile("tmp-815-1.pdf");
+        when(fedoraRepository.ingest(any(DigitalObjectDocument.class)))
+                .thenThrow(new FedoraClientException(409, "Conflict"));
+
+        mockMvc.perform(post("/document")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "   <DocumentId>815</DocumentId>" +
+                                "   <TitleMain>" +
+                                "       <Value>Macbeth</Value>" +
+                                "   </TitleMain>" +
+                                "   <File>" +
+                                "       <PathName>rollback-test-1.pdf</PathName>" +
+                                "       <TempFile>tmp-815-1.pdf</TempFile>" +
+                                "   </File>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isConflict());
+
+        verify(fedoraRepository, never()).purge(anyString());
+        assertFileExists("tmp-815-1.pdf", tempFolder.getRoot());
+        assertFileNotExists("815/rollback-test-1.pdf", dataFolder.getRoot());
+    }
+
+    @Test
+    public void ingestDoesNotReplaceFilesOfExistingObject() throws Exception {
+        tempFolder.newFile("tmp-815-1.pdf");
+        File existing = new File(dataFolder.newFolder("815"), "rollback-test-1.pdf");
+        FileUtils.writeStringToFile(existing, "existing");
+
+        mockMvc.perform(post("/document")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "   <DocumentId>815</DocumentId>" +
+                                "   <TitleMain>" +
+                                "       <Value>Macbeth</Value>" +
+                                "   </TitleMain>" +
+                                "   <File>" +
+                                "       <PathName>rollback-test-1.pdf</PathName>" +
+                                "       <TempFile>tmp-815-1.pdf</TempFile>" +
+                                "   </File>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isConflict());
+
+        verify(fedoraRepository, never()).ingest(any(DigitalObjectDocument.class));
+        assertFileExists("tmp-815-1.pdf", tempFolder.getRoot());
+        assertEquals("existing", FileUtils.readFileToString(existing));
+    }
+
     @Test
     public void modifiesQucosaXMLDatastream() throws Exception {
         tempFolder.newFile("tmp-4711.pdf");
@@ -278,12 +497,7 @@ public class DocumentResourceFileTest {
                                 "</Opus>"
                 ));
 
-        ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
-        verify(fedoraRepository).modifyDatastreamContent(
-                eq("qucosa:815"), eq("QUCOSA-XML"),
-                anyString(), argCapt.capture());
-
-        Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
+        Document control = ingestedQucosaXml();
         assertXpathExists("/Opus/Opus_Document/File[@id='1']", control);
         assertXpathExists("/Opus/Opus_Document/File[PathName='1057131155078-6506.pdf']", control);
         assertXpathNotExists("/Opus/Opus_Document/File/TempFile", control);
@@ -399,17 +613,71 @@ public class DocumentResourceFileTest {
         ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
         verify(fedoraRepository).modifyDatastreamContent(
                 eq("qucosa:4711"), eq("QUCOSA-XML"),
-                anyString(), argCapt.capture());
+                anyString(), argCapt.capture(), any(Date.class));
         Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
 
         assertXpathExists("/Opus/Opus_Document/File[@id='3']", control);
         assertXpathExists("/Opus/Opus_Document/File[PathName='yet-another.pdf']", control);
+        assertXpathExists("/Opus/Opus_Document/File[@id='3']/HashValue[Type='SHA-512' and Value='" + SHA512_OF_EMPTY_FILE + "']", control);
 
         verify(fedoraRepository).createExternalReferenceDatastream(
-                eq("qucosa:4711"), eq("QUCOSA-ATT-3"), eq("Volltextdokument (PDF)"), any(URI.class), anyString(), eq("A"));
+                eq("qucosa:4711"), eq("QUCOSA-ATT-3"), eq("Volltextdokument (PDF)"), any(URI.class), anyString(), eq("A"),
+                eq("SHA-512"), eq(SHA512_OF_EMPTY_FILE));
+        assertFileExists("4711/yet-another.pdf", dataFolder.getRoot());
+    }
+
+    @Test
+    public void concurrentUpdateWithNewFileIsRepeated() throws Exception {
+        tempFolder.newFile("tmp-yet-another.pdf");
+        doThrow(new FedoraClientException(409, "Conflict")).doNothing().when(fedoraRepository)
+                .modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(), any(InputStream.class),
+                        any(Date.class));
+
+        putNewFile().andExpect(status().isOk());
+
+        verify(fedoraRepository, times(2)).modifyDatastreamContent(
+                eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(), any(InputStream.class), any(Date.class));
+        verify(fedoraRepository, times(2)).createExternalReferenceDatastream(
+                eq("qucosa:4711"), eq("QUCOSA-ATT-3"), anyString(), any(URI.class), anyString(), anyString(),
+                anyString(), anyString());
+        verify(fedoraRepository, times(1)).purgeDatastream("qucosa:4711", "QUCOSA-ATT-3");
         assertFileExists("4711/yet-another.pdf", dataFolder.getRoot());
     }
 
+    @Test
+    public void conflictingUpdateWithNewFileKeepsTempfile() throws Exception {
+        tempFolder.newFile("tmp-yet-another.pdf");
+        doThrow(new FedoraClientException(409, "Conflict")).when(fedoraRepository)
+                .modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(), any(InputStream.class),
+                        any(Date.class));
+
+        putNewFile().andExpect(status().isConflict());
+
+        verify(fedoraRepository, times(3)).purgeDatastream("qucosa:4711", "QUCOSA-ATT-3");
+        assertFileExists("tmp-yet-another.pdf", tempFolder.getRoot());
+        assertFileNotExists("4711/yet-another.pdf", dataFolder.getRoot());
+    }
+
+    @Test
+    public void failingDatastreamCreationLeavesQucosaXMLUntouched() throws Exception {
+        tempFolder.newFile("tmp-yet-another.pdf");
+        when(fedoraRepository.createExternalReferenceDatastream(
+                anyString(), anyString(), anyString(), any(URI.class), anyString(), anyString(), anyString(),
+                anyString())).thenThrow(new FedoraClientException(500, "Internal Server Error"));
+
+        try {
+            putNewFile();
+            fail("Expected failing datastream creation to be reported");
+        } catch (NestedServletException ignored) {
+        }
+
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(), any(InputStream.class), any(Date.class));
+        verify(fedoraRepository, never()).purgeDatastream(anyString(), anyString());
+        assertFileExists("tmp-yet-another.pdf", tempFolder.getRoot());
+        assertFileNotExists("4711/yet-another.pdf", dataFolder.getRoot());
+    }
+
     @Test
     public void changingLabelOfFileElementAlsoChangesDatastreamLabel() throws Exception {
         mockMvc.perform(put("/document/4711")
@@ -496,6 +764,114 @@ public class DocumentResourceFileTest {
         assertFileExists("4711/new-name.pdf", dataFolder.getRoot());
     }
 
+    @Test
+    public void patchSetsFileLabel() throws Exception {
+        patchDocument("<SetFile id=\"2\" field=\"Label\">Another file</SetFile>").andExpect(status().isOk());
+
+        verify(fedoraRepository).updateExternalReferenceDatastream(
+                eq("qucosa:4711"), eq("QUCOSA-ATT-2"), eq("Another file"), any(URI.class), anyString());
+    }
+
+    @Test
+    public void patchSetsFilePathName() throws Exception {
+        patchDocument("<SetFile id=\"2\" field=\"PathName\">new-name.pdf</SetFile>").andExpect(status().isOk());
+
+        ArgumentCaptor<URI> argCapt = ArgumentCaptor.forClass(URI.class);
+        verify(fedoraRepository).updateExternalReferenceDatastream(
+                eq("qucosa:4711"), eq("QUCOSA-ATT-2"), anyString(), argCapt.capture(), anyString());
+        assertTrue(argCapt.getValue().toASCIIString().contains("new-name.pdf"));
+        assertFileNotExists("4711/another.pdf", dataFolder.getRoot());
+        assertFileExists("4711/new-name.pdf", dataFolder.getRoot());
+    }
+
+    @Test
+    public void patchSetsFileFrontdoorVisible() throws Exception {
+        patchDocument("<SetFile id=\"1\" field=\"FrontdoorVisible\">0</SetFile>").andExpect(status().isOk());
+
+        verify(fedoraRepository).updateExternalReferenceDatastream(
+                eq("qucosa:4711"), eq("QUCOSA-ATT-1"), anyString(), any(URI.class), eq("I"));
+        assertFileExists("4711/.htaccess", dataFolder.getRoot());
+    }
+
+    @Test
+    public void patchRejectsOtherFileFields() throws Exception {
+        patchDocument("<SetFile id=\"1\" field=\"HashValue\">0</SetFile>").andExpect(status().isBadRequest());
+
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                anyString(), anyString(), anyString(), any(InputStream.class), any(Date.class));
+    }
+
+    @Test
+    public void mergesFileElementsByIdRegardlessOfOrder() throws Exception {
+        mockMvc.perform(put("/document/4711")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<File id=\"2\">" +
+                                "   <PathName>another.pdf</PathName>" +
+                                "   <Label>Another file</Label>" +
+                                "</File>" +
+                                "<File id=\"1\">" +
+                                "   <PathName>1057131155078-6506.pdf</PathName>" +
+                                "</File>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                )).andExpect(status().isOk());
+
+        verify(fedoraRepository).updateExternalReferenceDatastream(
+                eq("qucosa:4711"), eq("QUCOSA-ATT-2"), eq("Another file"), any(URI.class), anyString());
+        verify(fedoraRepository, never()).updateExternalReferenceDatastream(
+                eq("qucosa:4711"), eq("QUCOSA-ATT-1"), anyString(), any(URI.class), anyString());
+        verify(fedoraRepository, never()).purgeDatastream(anyString(), anyString());
+    }
+
+    @Test
+    public void renamesFileToNameOfPurgedFile() throws Exception {
+        mockMvc.perform(put("/document/4711")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<File id=\"1\">" +
+                                "   <PathName>another.pdf</PathName>" +   // name of the purged file 2
+                                "</File>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                )).andExpect(status().isOk());
+
+        verify(fedoraRepository).purgeDatastream(eq("qucosa:4711"), eq("QUCOSA-ATT-2"));
+        ArgumentCaptor<URI> argCapt = ArgumentCaptor.forClass(URI.class);
+        verify(fedoraRepository).updateExternalReferenceDatastream(
+                eq("qucosa:4711"), eq("QUCOSA-ATT-1"), anyString(), argCapt.capture(), anyString());
+        assertTrue(argCapt.getValue().toASCIIString().contains("another.pdf"));
+
+        assertFileNotExists("4711/1057131155078-6506.pdf", dataFolder.getRoot());
+        assertFileExists("4711/another.pdf", dataFolder.getRoot());
+    }
+
+    @Test
+    public void onlyMergesFileElementsDirectlyBelowOpusDocument() throws Exception {
+        mockMvc.perform(put("/document/4711")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<File id=\"1\">" +
+                                "   <PathName>1057131155078-6506.pdf</PathName>" +
+                                "</File>" +
+                                "<Note><File id=\"2\"/></Note>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                )).andExpect(status().isOk());
+
+        verify(fedoraRepository, never()).purgeDatastream(eq("qucosa:4711"), eq("QUCOSA-ATT-1"));
+        verify(fedoraRepository).purgeDatastream(eq("qucosa:4711"), eq("QUCOSA-ATT-2"));
+    }
+
     @Test
     public void dontTouchDatastreamsIfNoFileElementInUpdateXML() throws Exception {
         mockMvc.perform(put("/document/4711")
@@ -515,18 +891,6 @@ public class DocumentResourceFileTest {
     @Test
     public void addsHashValueElement() throws Exception {
         tempFolder.newFile("tmp-4711.pdf");
-        final String SHA512 = "e3aeef00891378c0750606f0328f9fb385e900a2bc8faf015fdf87c1f37acfab3a3768bab20c0eaeb5e25ae985683e0d4a5da480bfc4f83ee02f4a073b3b84c6";
-
-        DatastreamProfile dsp = mock(DatastreamProfile.class);
-        when(dsp.getDsChecksumType()).thenReturn("SHA-512");
-        when(dsp.getDsChecksum()).thenReturn(SHA512);
-        when(fedoraRepository.createExternalReferenceDatastream(
-                eq("qucosa:815"),
-                eq("QUCOSA-ATT-1"),
-                eq("Volltextdokument (PDF)"),
-                any(URI.class),
-                anyString(),
-                eq("A"))).thenReturn(dsp);
 
         mockMvc.perform(post("/document")
                 .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
@@ -557,14 +921,12 @@ public class DocumentResourceFileTest {
                 ))
                 .andExpect(status().isCreated());
 
-        ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
-        verify(fedoraRepository).modifyDatastreamContent(
-                eq("qucosa:815"), eq("QUCOSA-XML"),
-                anyString(), argCapt.capture());
-        Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
+        Document control = ingestedQucosaXml();
 
         assertXpathExists("/Opus/Opus_Document/File/HashValue[Type='SHA-512']", control);
-        assertXpathExists("/Opus/Opus_Document/File/HashValue[Value='" + SHA512 + "']", control);
+        assertXpathExists("/Opus/Opus_Document/File/HashValue[Value='" + SHA512_OF_EMPTY_FILE + "']", control);
+        assertXpathExists("//fox:datastream[@ID='QUCOSA-ATT-1']//fox:contentDigest[@TYPE='SHA-512' and @DIGEST='" + SHA512_OF_EMPTY_FILE + "']",
+                ingestedFoxml());
     }
 
     @Test
@@ -602,11 +964,7 @@ public class DocumentResourceFileTest {
                 ))
                 .andExpect(status().isCreated());
 
-        ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
-        verify(fedoraRepository).modifyDatastreamContent(
-                eq("qucosa:815"), eq("QUCOSA-XML"),
-                anyString(), argCapt.capture());
-        Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
+        Document control = ingestedQucosaXml();
 
         assertXpathExists("/Opus/Opus_Document/File[MimeType='application/pdf']", control);
     }
@@ -646,11 +1004,7 @@ public class DocumentResourceFileTest {
                 ))
                 .andExpect(status().isCreated());
 
-        ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
-        verify(fedoraRepository).modifyDatastreamContent(
-                eq("qucosa:815"), eq("QUCOSA-XML"),
-                anyString(), argCapt.capture());
-        Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
+        Document control = ingestedQucosaXml();
 
         assertXpathExists("/Opus/Opus_Document/File[FileSize='11112']", control);
     }
@@ -715,6 +1069,33 @@ public class DocumentResourceFileTest {
         assertFileNotExists("4711/.htaccess", dataFolder.getRoot());
     }
 
+    private ResultActions patchDocument(String operations) throws Exception {
+        return mockMvc.perform(request(HttpMethod.PATCH, "/document/4711")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content("<Opus version=\"2.0\"><Patch>" + operations + "</Patch></Opus>"));
+    }
+
+    private ResultActions putNewFile() throws Exception {
+        return mockMvc.perform(put("/document/4711")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<File id=\"1\"/>" +
+                                "<File id=\"2\"/>" +
+                                "<File>" +
+                                "   <PathName>yet-another.pdf</PathName>" +
+                                "   <Label>Volltextdokument (PDF)</Label>" +
+                                "   <TempFile>tmp-yet-another.pdf</TempFile>" +
+                                "   <FrontdoorVisible>1</FrontdoorVisible>" +
+                                "</File>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ));
+    }
+
     private void assertFileEquals(File expected, File actual) throws IOException {
         String s1 = IOUtils.toString(Files.newBufferedReader(expected.toPath(), Charset.defaultCharset())).trim();
         String s2 = IOUtils.toString(Files.newBufferedReader(actual.toPath(), Charset.defaultCharset())).trim();
@@ -726,8 +1107,28 @@ public class DocumentResourceFileTest {
         for (File f : files) FileUtils.deleteQuietly(f);
     }
 
-    private void mockDatastreamContent(String pid, String dsid, String xml) throws FedoraClientException {
-        when(fedoraRepository.getDatastreamContent(eq(pid), eq(dsid))).thenReturn(IOUtils.toInputStream(xml));
+    private Document ingestedFoxml() throws Exception {
+        ArgumentCaptor<DigitalObjectDocument> argCapt = ArgumentCaptor.forClass(DigitalObjectDocument.class);
+        verify(fedoraRepository).ingest(argCapt.capture());
+        return XMLUnit.buildControlDocument(argCapt.getValue().xmlText());
+    }
+
+    private Document ingestedQucosaXml() throws Exception {
+        Node opus = XMLUnit.newXpathEngine().getMatchingNodes(
+                "//fox:datastream[@ID='QUCOSA-XML']/fox:datastreamVersion/fox:xmlContent/Opus", ingestedFoxml()).item(0);
+        Document doc = XMLUnit.newControlParser().newDocument();
+        doc.appendChild(doc.importNode(opus, true));
+        return doc;
+    }
+
+    private void mockDatastreamContent(String pid, String dsid, final String xml) throws FedoraClientException {
+        // repeated updates read the content again
+        when(fedoraRepository.getDatastreamContent(eq(pid), eq(dsid))).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) {
+                return IOUtils.toInputStream(xml);
+            }
+        });
     }
 
     private void assertFileExists(String filename, File root) {
@@ -18,6 +18,7 @@
 package de.qucosa.webapi.v1;
 
 import com.yourmediashelf.fedora.client.FedoraClientException;
+import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
 import de.qucosa.fedora.FedoraRepository;
 import fedora.fedoraSystemDef.foxml.DigitalObjectDocument;
 import org.apache.commons.io.IOUtils;
@@ -29,32 +30,38 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.util.NestedServletException;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.xml.datatype.DatatypeFactory;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 import static org.custommonkey.xmlunit.XMLAssert.*;
-import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.*;
 import static org.mockito.Mockito.contains;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.xpath;
 
@@ -75,6 +82,8 @@ public class DocumentResourceTest {
     @Autowired
     private DocumentResource documentResource;
     @Autowired
+    private DocumentLockService documentLockService;
+    @Autowired
     private WebApplicationContext wac;
     private MockMvc mockMvc;
     @Autowired
@@ -101,39 +110,79 @@ public class DocumentResourceTest {
         Mockito.reset(fedoraRepository);
     }
 
-    @SuppressWarnings("unchecked")
     @Test
     public void returnsOpus2XML() throws Exception {
-        when(fedoraRepository.getPIDsByPattern(anyString())).thenReturn(anyList());
+        givenQucosaPIDs();
 
-        String response = documentResource.listAll().getBody();
+        String response = listAll(0, -1);
 
         assertXpathEvaluatesTo("2.0", "/Opus/@version", response);
     }
 
-    @SuppressWarnings("unchecked")
     @Test
     public void returnsEmptyDocumentList() throws Exception {
-        when(fedoraRepository.getPIDsByPattern(anyString())).thenReturn(anyList());
+        givenQucosaPIDs();
 
-        String response = documentResource.listAll().getBody();
+        String response = listAll(0, -1);
 
         assertXpathNotExists("/Opus/DocumentList/Document", response);
     }
 
     @Test
     public void putsCorrectXLinkToDocument() throws Exception {
-        ArrayList<String> documentList = new ArrayList<>();
-        documentList.add("qucosa:1234");
-        when(fedoraRepository.getPIDsByPattern(anyString())).thenReturn(documentList);
+        givenQucosaPIDs("qucosa:1234");
 
-        String response = documentResource.listAll().getBody();
+        String response = listAll(0, -1);
 
         assertXpathEvaluatesTo(httpServletRequest.getRequestURL() + ":80/document/1234", "/Opus/DocumentList/Document/@xlink:href", response);
         assertXpathEvaluatesTo("1234", "/Opus/DocumentList/Document/@xlink:nr", response);
         assertXpathEvaluatesTo("simple", "/Opus/DocumentList/Document/@xlink:type", response);
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void passesPagingParametersToRepository() throws Exception {
+        givenQucosaPIDs("qucosa:21", "qucosa:22");
+
+        mockMvc.perform(get("/document?offset=20&limit=2")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isOk())
+                .andExpect(xpath("count(/Opus/DocumentList/Document)").number(2.0));
+
+        verify(fedoraRepository).streamPIDsByPattern(eq("^qucosa:"), eq(20), eq(2), any(FedoraRepository.PIDHandler.class));
+    }
+
+    @Test
+    public void reportsListingFailureInStartedResponse() throws Exception {
+        givenFailingQucosaPIDs("qucosa:1234");
+
+        String response = listAll(0, -1);
+
+        assertXpathEvaluatesTo("1", "count(/Opus/DocumentList/Document)", response);
+        assertXpathEvaluatesTo("Resource index unavailable", "/Opus/DocumentList/Error/@message", response);
+    }
+
+    @Test
+    public void listingFailureBeforeFirstDocumentIsNotHidden() throws Exception {
+        givenFailingQucosaPIDs();
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            documentResource.listAll(0, -1, response);
+            fail("Expected FedoraClientException");
+        } catch (FedoraClientException e) {
+            assertFalse(response.isCommitted());
+            assertEquals("", response.getContentAsString());
+        }
+    }
+
+    @Test
+    public void rejectsNegativePagingParameters() throws Exception {
+        mockMvc.perform(get("/document?offset=-1")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     public void returns404WithNoContent() throws Exception {
         when(fedoraRepository.getDatastreamContent(anyString(), anyString())).thenThrow(
@@ -261,6 +310,55 @@ public class DocumentResourceTest {
                 .andExpect(xpath("/Opus/Opus_Document/@id").string("4711"));
     }
 
+    @Test
+    public void discardsMintedPidThatIsInUse() throws Exception {
+        when(fedoraRepository.mintPid("qucosa")).thenReturn("qucosa:4711", "qucosa:4712");
+        when(fedoraRepository.ingest(any(DigitalObjectDocument.class)))
+                .thenThrow(new FedoraClientException(409, "Conflict"))
+                .thenReturn("qucosa:4712");
+        mockMvc.perform(post(DOCUMENT_POST_URL)
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<PersonAuthor>" +
+                                "<LastName>Shakespear</LastName>" +
+                                "<FirstName>William</FirstName>" +
+                                "</PersonAuthor>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isCreated())
+                .andExpect(xpath("/Opus/Opus_Document/@id").string("4712"));
+
+        verify(fedoraRepository, times(2)).ingest(any(DigitalObjectDocument.class));
+        verify(fedoraRepository, never()).hasObject(anyString());
+        verify(fedoraRepository, never()).purge(anyString());
+    }
+
+    @Test
+    public void doesNotPurgeExistingObjectIfIngestFails() throws Exception {
+        when(fedoraRepository.ingest(any(DigitalObjectDocument.class)))
+                .thenThrow(new FedoraClientException(409, "Conflict"));
+        mockMvc.perform(post(DOCUMENT_POST_URL)
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<DocumentId>4711</DocumentId>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isConflict());
+
+        verify(fedoraRepository, times(1)).ingest(any(DigitalObjectDocument.class));
+        verify(fedoraRepository, never()).purge(anyString());
+    }
+
     @Test
     public void addsDocumentIdOnCreation() throws Exception {
         when(fedoraRepository.mintPid("qucosa")).thenReturn("qucosa:4711");
@@ -352,6 +450,33 @@ public class DocumentResourceTest {
                 .andExpect(status().isCreated());
     }
 
+    @Test
+    public void checksPidUnderDocumentLock() throws Exception {
+        final long acquisitionsBefore = documentLockService.getAcquisitionCount();
+        final List<Long> acquisitionsAtCheck = new ArrayList<>();
+        when(fedoraRepository.hasObject("qucosa:4711")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                acquisitionsAtCheck.add(documentLockService.getAcquisitionCount());
+                return false;
+            }
+        });
+        mockMvc.perform(post(DOCUMENT_POST_URL)
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<DocumentId>4711</DocumentId>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isCreated());
+
+        assertEquals(Collections.singletonList(acquisitionsBefore + 1), acquisitionsAtCheck);
+    }
+
     @Test
     public void errorIfPidIsAlreadyTaken() throws Exception {
         when(fedoraRepository.hasObject(anyString())).thenReturn(true);
@@ -434,7 +559,7 @@ public class DocumentResourceTest {
         ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
         verify(fedoraRepository)
                 .modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), eq("application/vnd.slub.qucosa-v1+xml"),
-                        argCapt.capture());
+                        argCapt.capture(), any(Date.class));
         Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
 
         assertXpathEvaluatesTo("Macbeth", "/Opus/Opus_Document/TitleMain/Value", control);
@@ -480,7 +605,7 @@ public class DocumentResourceTest {
         ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
         verify(fedoraRepository)
                 .modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), eq("application/vnd.slub.qucosa-v1+xml"),
-                        argCapt.capture());
+                        argCapt.capture(), any(Date.class));
         Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
         assertXpathEvaluatesTo(DEFAULT_URN_PREFIX + "-47118", "/Opus/Opus_Document/IdentifierUrn/Value", control);
     }
@@ -601,6 +726,7 @@ public class DocumentResourceTest {
                 .content(
                         "<Opus version=\"2.0\">" +
                                 "<Opus_Document>" +
+                                "<TitleMain><Value>Hamlet</Value></TitleMain>" +
                                 "<IdentifierUrn><Value>urn:nbn:de:slub-dresden:qucosa:47116</Value></IdentifierUrn>" +
                                 "</Opus_Document>" +
                                 "</Opus>"
@@ -644,7 +770,7 @@ public class DocumentResourceTest {
         ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
         verify(fedoraRepository)
                 .modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), eq("application/vnd.slub.qucosa-v1+xml"),
-                        argCapt.capture());
+                        argCapt.capture(), any(Date.class));
         Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
         assertXpathEvaluatesTo("published", "/Opus/Opus_Document/ServerState", control);
     }
@@ -670,6 +796,7 @@ public class DocumentResourceTest {
                         "<Opus version=\"2.0\">" +
                                 "<Opus_Document>" +
                                 "<ServerState/>" +
+                                "<Language>eng</Language>" +
                                 "</Opus_Document>" +
                                 "</Opus>"
                 ))
@@ -678,7 +805,7 @@ public class DocumentResourceTest {
         ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
         verify(fedoraRepository)
                 .modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), eq("application/vnd.slub.qucosa-v1+xml"),
-                        argCapt.capture());
+                        argCapt.capture(), any(Date.class));
         Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
         assertXpathNotExists("/Opus/Opus_Document/ServerState", control);
     }
@@ -713,7 +840,7 @@ public class DocumentResourceTest {
         ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
         verify(fedoraRepository)
                 .modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), eq("application/vnd.slub.qucosa-v1+xml"),
-                        argCapt.capture());
+                        argCapt.capture(), any(Date.class));
         Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
         assertXpathEvaluatesTo("doctoral_thesis", "/Opus/Opus_Document/Type", control);
         assertXpathEvaluatesTo("other", "/Opus/Opus_Document/Organisation/Type", control);
@@ -798,6 +925,317 @@ public class DocumentResourceTest {
                 .modifyObjectMetadata(eq("qucosa:4711"), eq("A"), anyString(), eq("qucosa"));
     }
 
+    @Test
+    public void unchangedUpdateDoesNotWriteToRepository() throws Exception {
+        when(fedoraRepository.hasObject("qucosa:4711")).thenReturn(true);
+        when(fedoraRepository.getDatastreamContent("qucosa:4711", "QUCOSA-XML")).thenReturn(
+                IOUtils.toInputStream(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "<PersonAuthor><LastName>Shakespeare</LastName></PersonAuthor>" +
+                                "<IdentifierUrn><Value>urn:nbn:de:slub-dresden:qucosa:47116</Value></IdentifierUrn>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                )
+        );
+
+        mockMvc.perform(put(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">\n" +
+                                "  <Opus_Document>\n" +
+                                "    <PersonAuthor><LastName>Shakespeare</LastName></PersonAuthor>\n" +
+                                "    <TitleMain>\n" +
+                                "      <Value>Macbeth</Value>\n" +
+                                "    </TitleMain>\n" +
+                                "  </Opus_Document>\n" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isOk());
+
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                anyString(), anyString(), anyString(), any(InputStream.class));
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                anyString(), anyString(), anyString(), any(InputStream.class), any(Date.class));
+        verify(fedoraRepository, never()).modifyObjectMetadata(
+                anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void changedUpdateWritesToRepository() throws Exception {
+        when(fedoraRepository.hasObject("qucosa:4711")).thenReturn(true);
+        when(fedoraRepository.getDatastreamContent("qucosa:4711", "QUCOSA-XML")).thenReturn(
+                IOUtils.toInputStream(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "<IdentifierUrn><Value>urn:nbn:de:slub-dresden:qucosa:47116</Value></IdentifierUrn>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                )
+        );
+
+        mockMvc.perform(put(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<ServerState>published</ServerState>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isOk());
+
+        verify(fedoraRepository).modifyDatastreamContent(
+                eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(), any(InputStream.class), any(Date.class));
+        verify(fedoraRepository).modifyObjectMetadata(eq("qucosa:4711"), eq("A"), anyString(), eq("qucosa"));
+    }
+
+    @Test
+    public void updatePassesLastModifiedDateAsPrecondition() throws Exception {
+        GregorianCalendar modified = new GregorianCalendar(2014, Calendar.MARCH, 14, 12, 0, 0);
+        DatastreamProfile dsp = mock(DatastreamProfile.class);
+        when(dsp.getDsCreateDate()).thenReturn(DatatypeFactory.newInstance().newXMLGregorianCalendar(modified));
+        when(fedoraRepository.getDatastreamProfile("qucosa:4711", "QUCOSA-XML")).thenReturn(dsp);
+        givenStoredDocumentForUpdate();
+
+        putServerStatePublished().andExpect(status().isOk());
+
+        verify(fedoraRepository).modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(),
+                any(InputStream.class), eq(modified.getTime()));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void updateIsRepeatedOnConcurrentModification() throws Exception {
+        givenStoredDocumentForUpdate();
+        doThrow(new FedoraClientException(409, "Conflict")).doNothing().when(fedoraRepository)
+                .modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(),
+                        any(InputStream.class), any(Date.class));
+
+        putServerStatePublished().andExpect(status().isOk());
+
+        verify(fedoraRepository, times(2)).getDatastreamContent("qucosa:4711", "QUCOSA-XML");
+        verify(fedoraRepository, times(2)).modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(),
+                any(InputStream.class), any(Date.class));
+        verify(fedoraRepository, times(1)).modifyObjectMetadata(eq("qucosa:4711"), eq("A"), anyString(), eq("qucosa"));
+    }
+
+    @Test
+    public void updateReturnsConflictIfConcurrentModificationsPersist() throws Exception {
+        givenStoredDocumentForUpdate();
+        doThrow(new FedoraClientException(409, "Conflict")).when(fedoraRepository)
+                .modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(),
+                        any(InputStream.class), any(Date.class));
+
+        putServerStatePublished()
+                .andExpect(status().isConflict())
+                .andExpect(xpath("/Opus/Error").exists());
+
+        verify(fedoraRepository, never()).modifyObjectMetadata(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void updateRejectsNotMatchingEntityTag() throws Exception {
+        DatastreamProfile dsp = mock(DatastreamProfile.class);
+        when(dsp.getDsChecksum()).thenReturn("cb961ca0c79086341cdc454ea627d975");
+        when(fedoraRepository.getDatastreamProfile("qucosa:4711", "QUCOSA-XML")).thenReturn(dsp);
+        givenStoredDocumentForUpdate();
+
+        mockMvc.perform(put(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .header("If-Match", "\"0000\"")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<ServerState>published</ServerState>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isPreconditionFailed());
+
+        verify(fedoraRepository, never()).modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(),
+                any(InputStream.class), any(Date.class));
+    }
+
+    @Test
+    public void updateAcceptsMatchingEntityTag() throws Exception {
+        DatastreamProfile dsp = mock(DatastreamProfile.class);
+        when(dsp.getDsChecksum()).thenReturn("cb961ca0c79086341cdc454ea627d975");
+        when(fedoraRepository.getDatastreamProfile("qucosa:4711", "QUCOSA-XML")).thenReturn(dsp);
+        givenStoredDocumentForUpdate();
+
+        mockMvc.perform(put(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .header("If-Match", "\"cb961ca0c79086341cdc454ea627d975\"")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<ServerState>published</ServerState>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void updateAcceptsEntityTagOfCompressedResponse() throws Exception {
+        DatastreamProfile dsp = mock(DatastreamProfile.class);
+        when(dsp.getDsChecksum()).thenReturn("cb961ca0c79086341cdc454ea627d975");
+        when(fedoraRepository.getDatastreamProfile("qucosa:4711", "QUCOSA-XML")).thenReturn(dsp);
+        givenStoredDocumentForUpdate();
+
+        mockMvc.perform(put(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .header("If-Match", "\"cb961ca0c79086341cdc454ea627d975-deflate\"")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<ServerState>published</ServerState>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void updateWritesObjectMetadataEvenIfDCUpdateFails() throws Exception {
+        givenStoredDocumentForUpdate();
+        when(fedoraRepository.getDatastreamContent("qucosa:4711", "DC")).thenThrow(
+                new FedoraClientException(500, "DC unavailable"));
+
+        try {
+            mockMvc.perform(put(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                    .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                    .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                    .content(
+                            "<Opus version=\"2.0\">" +
+                                    "<Opus_Document>" +
+                                    "<TitleMain><Value>Hamlet</Value></TitleMain>" +
+                                    "</Opus_Document>" +
+                                    "</Opus>"
+                    ));
+            fail("Expected failing DC update to be reported");
+        } catch (NestedServletException e) {
+            assertTrue(e.getCause() instanceof FedoraClientException);
+        }
+
+        verify(fedoraRepository)
+                .modifyObjectMetadata(eq("qucosa:4711"), any(String.class), contains("Hamlet"), eq("qucosa"));
+    }
+
+    @Test
+    public void patchedStateOnlyWritesQucosaXMLAndObjectState() throws Exception {
+        givenStoredDocumentForUpdate();
+
+        patchStoredDocument("<Set><ServerState>published</ServerState></Set>").andExpect(status().isOk());
+
+        ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
+        verify(fedoraRepository).modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(),
+                argCapt.capture(), any(Date.class));
+        Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
+        assertXpathEvaluatesTo("published", "/Opus/Opus_Document/ServerState", control);
+        assertXpathEvaluatesTo("Macbeth", "/Opus/Opus_Document/TitleMain/Value", control);
+
+        verify(fedoraRepository).modifyObjectMetadata(eq("qucosa:4711"), eq("A"), anyString(), eq("qucosa"));
+        verify(fedoraRepository, never()).getDatastreamContent("qucosa:4711", "DC");
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                eq("qucosa:4711"), eq("DC"), anyString(), any(InputStream.class));
+    }
+
+    @Test
+    public void patchedTitleUpdatesDCAndLabel() throws Exception {
+        givenStoredDocumentForUpdate();
+        when(fedoraRepository.getDatastreamContent("qucosa:4711", "DC")).thenReturn(
+                IOUtils.toInputStream(
+                        "<oai:dc xmlns:oai=\"http://www.openarchives.org/OAI/2.0/oai_dc/\">" +
+                                "<ns:title xmlns:ns=\"http://purl.org/dc/elements/1.1/\">Macbeth</ns:title>" +
+                                "</oai:dc>"
+                )
+        );
+
+        patchStoredDocument("<Set><TitleMain><Value>Hamlet</Value></TitleMain></Set>").andExpect(status().isOk());
+
+        ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
+        verify(fedoraRepository).modifyDatastreamContent(eq("qucosa:4711"), eq("DC"), eq("text/xml"),
+                argCapt.capture());
+        Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
+        assertXpathEvaluatesTo("Hamlet", "//ns:title", control);
+        verify(fedoraRepository)
+                .modifyObjectMetadata(eq("qucosa:4711"), any(String.class), contains("Hamlet"), eq("qucosa"));
+    }
+
+    @Test
+    public void patchAddsAndRemovesFields() throws Exception {
+        givenStoredDocumentForUpdate();
+
+        patchStoredDocument(
+                "<Add><TitleMain><Value>Hamlet</Value></TitleMain></Add>" +
+                        "<Remove field=\"TitleMain\" index=\"1\"/>" +
+                        "<Remove field=\"TitleAbstract\"/>")
+                .andExpect(status().isOk());
+
+        ArgumentCaptor<InputStream> argCapt = ArgumentCaptor.forClass(InputStream.class);
+        verify(fedoraRepository).modifyDatastreamContent(eq("qucosa:4711"), eq("QUCOSA-XML"), anyString(),
+                argCapt.capture(), any(Date.class));
+        Document control = XMLUnit.buildControlDocument(new InputSource(argCapt.getValue()));
+        assertXpathEvaluatesTo("1", "count(/Opus/Opus_Document/TitleMain)", control);
+        assertXpathEvaluatesTo("Hamlet", "/Opus/Opus_Document/TitleMain/Value", control);
+        assertXpathExists("/Opus/Opus_Document/IdentifierUrn", control);
+    }
+
+    @Test
+    public void unchangedPatchDoesNotWriteToRepository() throws Exception {
+        givenStoredDocumentForUpdate();
+
+        patchStoredDocument("<Set><TitleMain><Value>Macbeth</Value></TitleMain></Set>").andExpect(status().isOk());
+
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                anyString(), anyString(), anyString(), any(InputStream.class), any(Date.class));
+        verify(fedoraRepository, never()).modifyObjectMetadata(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void patchWithUnknownOperationIsRejected() throws Exception {
+        givenStoredDocumentForUpdate();
+
+        patchStoredDocument("<Replace><TitleMain><Value>Hamlet</Value></TitleMain></Replace>")
+                .andExpect(status().isBadRequest());
+
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                anyString(), anyString(), anyString(), any(InputStream.class), any(Date.class));
+    }
+
+    @Test
+    public void patchCannotChangeDocumentIdOrRemoveURN() throws Exception {
+        givenStoredDocumentForUpdate();
+
+        for (String operation : new String[]{
+                "<Set><DocumentId>4712</DocumentId></Set>",
+                "<Remove field=\"DocumentId\"/>",
+                "<Remove field=\"IdentifierUrn\"/>",
+                "<Set><IdentifierUrn/></Set>"}) {
+            patchStoredDocument(operation).andExpect(status().isBadRequest());
+        }
+
+        verify(fedoraRepository, never()).modifyDatastreamContent(
+                anyString(), anyString(), anyString(), any(InputStream.class), any(Date.class));
+    }
+
+    @Test
+    public void patchOfUnknownFileIsRejected() throws Exception {
+        givenStoredDocumentForUpdate();
+
+        patchStoredDocument("<SetFile id=\"1\" field=\"Label\">Chapter 1</SetFile>")
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     public void getDocumentSkipsEmptyFields() throws Exception {
         when(fedoraRepository.getDatastreamContent("qucosa:4711", "QUCOSA-XML")).thenReturn(
@@ -819,6 +1257,228 @@ public class DocumentResourceTest {
                 .andExpect(xpath("//TitleSub[not(node())]").doesNotExist());
     }
 
+    @Test
+    public void getDocumentReturnsEntityTag() throws Exception {
+        DatastreamProfile dsp = mock(DatastreamProfile.class);
+        when(dsp.getDsChecksum()).thenReturn("cb961ca0c79086341cdc454ea627d975");
+        when(fedoraRepository.getDatastreamProfile("qucosa:4711", "QUCOSA-XML")).thenReturn(dsp);
+        when(fedoraRepository.getDatastreamContent("qucosa:4711", "QUCOSA-XML")).thenReturn(
+                IOUtils.toInputStream(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                )
+        );
+
+        mockMvc.perform(get(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"cb961ca0c79086341cdc454ea627d975\""));
+    }
+
+    @Test
+    public void getDocumentReturnsNotModifiedIfEntityTagMatches() throws Exception {
+        DatastreamProfile dsp = mock(DatastreamProfile.class);
+        when(dsp.getDsChecksum()).thenReturn("cb961ca0c79086341cdc454ea627d975");
+        when(fedoraRepository.getDatastreamProfile("qucosa:4711", "QUCOSA-XML")).thenReturn(dsp);
+
+        mockMvc.perform(get(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .header("If-None-Match", "\"cb961ca0c79086341cdc454ea627d975\"")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isNotModified());
+
+        verify(fedoraRepository, never()).getDatastreamContent(anyString(), anyString());
+    }
+
+    @Test
+    public void getDocumentAcceptsEntityTagOfCompressedResponse() throws Exception {
+        DatastreamProfile dsp = mock(DatastreamProfile.class);
+        when(dsp.getDsChecksum()).thenReturn("cb961ca0c79086341cdc454ea627d975");
+        when(fedoraRepository.getDatastreamProfile("qucosa:4711", "QUCOSA-XML")).thenReturn(dsp);
+
+        mockMvc.perform(get(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .header("If-None-Match", "\"cb961ca0c79086341cdc454ea627d975-gzip\"")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void getDocumentsReturnsRequestedDocumentsInOneEnvelope() throws Exception {
+        when(fedoraRepository.getDatastreamContent("qucosa:1", "QUCOSA-XML")).thenReturn(
+                IOUtils.toInputStream("<Opus version=\"2.0\"><Opus_Document>" +
+                        "<DocumentId>1</DocumentId><TitleSub/></Opus_Document></Opus>"));
+        when(fedoraRepository.getDatastreamContent("qucosa:2", "QUCOSA-XML")).thenReturn(
+                IOUtils.toInputStream("<Opus version=\"2.0\"><Opus_Document>" +
+                        "<DocumentId>2</DocumentId></Opus_Document></Opus>"));
+
+        mockMvc.perform(get("/document?ids=1,2")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isOk())
+                .andExpect(xpath("/Opus[@version='2.0']").exists())
+                .andExpect(xpath("/Opus/Opus_Document[1]/DocumentId").string("1"))
+                .andExpect(xpath("/Opus/Opus_Document[2]/DocumentId").string("2"))
+                .andExpect(xpath("/Opus/Opus_Document/TitleSub").doesNotExist());
+    }
+
+    @Test
+    public void getDocumentsReportsMissingDocumentsInline() throws Exception {
+        when(fedoraRepository.getDatastreamContent("qucosa:1", "QUCOSA-XML")).thenReturn(
+                IOUtils.toInputStream("<Opus version=\"2.0\"><Opus_Document>" +
+                        "<DocumentId>1</DocumentId></Opus_Document></Opus>"));
+        when(fedoraRepository.getDatastreamContent("qucosa:2", "QUCOSA-XML")).thenThrow(
+                new FedoraClientException(404, "NOT FOUND"));
+
+        mockMvc.perform(get("/document?ids=1,2")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isOk())
+                .andExpect(xpath("/Opus/Opus_Document/DocumentId").string("1"))
+                .andExpect(xpath("/Opus/Error[@id='2']/@status").string("404"));
+    }
+
+    @Test
+    public void asyncIngestReturnsAcceptedAndReportsJobResult() throws Exception {
+        when(fedoraRepository.hasObject("qucosa:4711")).thenReturn(false);
+
+        MvcResult result = mockMvc.perform(post(DOCUMENT_POST_URL + "&async=true")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<DocumentId>4711</DocumentId>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isAccepted())
+                .andExpect(xpath("/Opus/IngestJob/@documentId").string("4711"))
+                .andReturn();
+
+        String location = result.getResponse().getHeader("Location");
+        mockMvc.perform(get(location.substring(location.indexOf("/document/job/")))
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isOk())
+                .andExpect(xpath("/Opus/IngestJob/@state").string("SUCCEEDED"))
+                .andExpect(xpath("/Opus/IngestJob/Opus_Document/@id").string("4711"));
+        verify(fedoraRepository).ingest(any(DigitalObjectDocument.class));
+    }
+
+    @Test
+    public void failedAsyncIngestIsReportedByJob() throws Exception {
+        when(fedoraRepository.hasObject("qucosa:4711")).thenReturn(false);
+        when(fedoraRepository.ingest(any(DigitalObjectDocument.class))).thenThrow(
+                new FedoraClientException(500, "Ingest failed"));
+
+        MvcResult result = mockMvc.perform(post(DOCUMENT_POST_URL + "&async=true")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<DocumentId>4711</DocumentId>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ))
+                .andExpect(status().isAccepted())
+                .andReturn();
+
+        String location = result.getResponse().getHeader("Location");
+        mockMvc.perform(get(location.substring(location.indexOf("/document/job/")))
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(xpath("/Opus/IngestJob/@state").string("FAILED"))
+                .andExpect(xpath("/Opus/IngestJob/Error/@message").string("Ingest failed"));
+        verify(fedoraRepository).purge("qucosa:4711");
+    }
+
+    @Test
+    public void batchIngestReportsEachDocumentInOrder() throws Exception {
+        when(fedoraRepository.hasObject(anyString())).thenReturn(false);
+        when(fedoraRepository.hasObject("qucosa:4712")).thenReturn(true);
+
+        mockMvc.perform(post("/document/batch?nis1=bsz&nis2=15&niss=qucosa")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Batch>" +
+                                "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<DocumentId>4711</DocumentId>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>" +
+                                "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<DocumentId>4712</DocumentId>" +
+                                "<TitleMain><Value>Hamlet</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>" +
+                                "<Opus version=\"2.0\"/>" +
+                                "</Batch>"
+                ))
+                .andExpect(status().isOk())
+                .andExpect(xpath("/Opus/BatchResult/*[1]/@id").string("4711"))
+                .andExpect(xpath("/Opus/BatchResult/Opus_Document[@index='1']/@xlink:href", NS).exists())
+                .andExpect(xpath("/Opus/BatchResult/Error[@index='2']/@status").string("409"))
+                .andExpect(xpath("/Opus/BatchResult/Error[@index='3']/@status").string("400"));
+        verify(fedoraRepository, times(1)).ingest(any(DigitalObjectDocument.class));
+    }
+
+    @Test
+    public void batchIngestRollsBackFailedDocument() throws Exception {
+        when(fedoraRepository.hasObject("qucosa:4711")).thenReturn(false);
+        when(fedoraRepository.ingest(any(DigitalObjectDocument.class))).thenThrow(
+                new FedoraClientException(500, "Ingest failed"));
+
+        mockMvc.perform(post("/document/batch?nis1=bsz&nis2=15&niss=qucosa")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Batch>" +
+                                "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<DocumentId>4711</DocumentId>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>" +
+                                "</Batch>"
+                ))
+                .andExpect(status().isOk())
+                .andExpect(xpath("/Opus/BatchResult/Error[@index='1']/@message").string("Ingest failed"));
+        verify(fedoraRepository).purge("qucosa:4711");
+    }
+
+    @Test
+    public void batchIngestReportsTruncatedBatch() throws Exception {
+        when(fedoraRepository.hasObject("qucosa:4711")).thenReturn(false);
+
+        mockMvc.perform(post("/document/batch?nis1=bsz&nis2=15&niss=qucosa")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Batch>" +
+                                "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<DocumentId>4711</DocumentId>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "</Opus_Document>" +
+                                "</Opus>" +
+                                "<Opus version=\"2.0\"><Opus_Document>"
+                ))
+                .andExpect(status().isOk())
+                .andExpect(xpath("/Opus/BatchResult/Opus_Document/@id").string("4711"))
+                .andExpect(xpath("/Opus/BatchResult/Error/@index").string("2"));
+    }
+
+    @Test
+    public void unknownIngestJobReturns404() throws Exception {
+        mockMvc.perform(get("/document/job/no-such-job")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     public void ingestSetsObjectStateToActiveIfServerStateIsPublished() throws Exception {
         when(fedoraRepository.hasObject("qucosa:4711")).thenReturn(false);
@@ -875,4 +1535,72 @@ public class DocumentResourceTest {
         assertXpathEvaluatesTo("D", "//fox:objectProperties/fox:property[@NAME='info:fedora/fedora-system:def/model#state']/@VALUE", control);
     }
 
+    @SuppressWarnings("unchecked")
+    private void givenQucosaPIDs(final String... pids) throws Exception {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                FedoraRepository.PIDHandler<Exception> handler =
+                        (FedoraRepository.PIDHandler<Exception>) invocation.getArguments()[3];
+                for (String pid : pids) handler.handle(pid);
+                return null;
+            }
+        }).when(fedoraRepository).streamPIDsByPattern(anyString(), anyInt(), anyInt(), any(FedoraRepository.PIDHandler.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void givenFailingQucosaPIDs(final String... pids) throws Exception {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                FedoraRepository.PIDHandler<Exception> handler =
+                        (FedoraRepository.PIDHandler<Exception>) invocation.getArguments()[3];
+                for (String pid : pids) handler.handle(pid);
+                throw new FedoraClientException(500, "Resource index unavailable");
+            }
+        }).when(fedoraRepository).streamPIDsByPattern(anyString(), anyInt(), anyInt(), any(FedoraRepository.PIDHandler.class));
+    }
+
+    private void givenStoredDocumentForUpdate() throws Exception {
+        when(fedoraRepository.hasObject("qucosa:4711")).thenReturn(true);
+        when(fedoraRepository.getDatastreamContent("qucosa:4711", "QUCOSA-XML")).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return IOUtils.toInputStream(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                                "<IdentifierUrn><Value>urn:nbn:de:slub-dresden:qucosa:47116</Value></IdentifierUrn>" +
+                                "</Opus_Document>" +
+                                "</Opus>");
+            }
+        });
+    }
+
+    private ResultActions patchStoredDocument(String operations) throws Exception {
+        return mockMvc.perform(request(HttpMethod.PATCH, DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content("<Opus version=\"2.0\"><Patch>" + operations + "</Patch></Opus>"));
+    }
+
+    private ResultActions putServerStatePublished() throws Exception {
+        return mockMvc.perform(put(DOCUMENT_PUT_URL_WITHOUT_PARAMS)
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .contentType(new MediaType("application", "vnd.slub.qucosa-v1+xml"))
+                .content(
+                        "<Opus version=\"2.0\">" +
+                                "<Opus_Document>" +
+                                "<ServerState>published</ServerState>" +
+                                "</Opus_Document>" +
+                                "</Opus>"
+                ));
+    }
+
+    private String listAll(int offset, int limit) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        documentResource.listAll(offset, limit, response);
+        return response.getContentAsString();
+    }
+
 }
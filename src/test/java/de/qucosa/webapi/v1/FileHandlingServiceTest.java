@@ -22,10 +22,22 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
 public class FileHandlingServiceTest {
@@ -35,6 +47,8 @@ public class FileHandlingServiceTest {
     @Rule
     public TemporaryFolder targetFolder = new TemporaryFolder();
 
+    private static final String SHA512_OF_CONTENT = "b2d1d285b5199c85f988d03649c37e44fd3dde01e5d69c50fef90651962f48110e9340b60d49a479c4c0b53f5f07d690686dd87d2481937a512e8b85ee7c617f";
+
     private FileHandlingService fileHandlingService;
 
     @Before
@@ -54,6 +68,262 @@ public class FileHandlingServiceTest {
         assertFileExists("4711/target", targetFolder.getRoot());
     }
 
+    @Test
+    public void movesTempfileByDefault() throws Exception {
+        FileHandlingService.PlacedFile placed =
+                fileHandlingService.placeTempfileInTargetFileSpace("source-123", "target", "4711");
+        assertEquals(FileHandlingService.Placement.MOVE, placed.getPlacement());
+        assertEquals(new File(targetFolder.getRoot(), "4711/target").toURI().normalize(), placed.getUri());
+        assertFileExists("4711/target", targetFolder.getRoot());
+        assertFileNotExists("source-123", sourceFolder.getRoot());
+    }
+
+    @Test
+    public void linksTempfileIfConfigured() throws Exception {
+        FileHandlingService.PlacedFile placed = placeWith("link");
+        assertEquals(FileHandlingService.Placement.LINK, placed.getPlacement());
+        assertFileExists("4711/target", targetFolder.getRoot());
+        assertFileNotExists("source-123", sourceFolder.getRoot());
+    }
+
+    @Test
+    public void linkedTempfileKeepsItsContent() throws Exception {
+        Files.write(new File(sourceFolder.getRoot(), "source-123").toPath(), "content".getBytes("UTF-8"));
+        FileHandlingService.PlacedFile placed = placeWith("link,copy");
+        assertEquals(FileHandlingService.Placement.LINK, placed.getPlacement());
+        assertEquals(SHA512_OF_CONTENT, placed.getChecksum());
+        assertEquals("content", new String(Files.readAllBytes(new File(placed.getUri()).toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void copiesTempfileIfConfigured() throws Exception {
+        Files.write(new File(sourceFolder.getRoot(), "source-123").toPath(), "content".getBytes("UTF-8"));
+        FileHandlingService.PlacedFile placed = placeWith("copy");
+        assertEquals(FileHandlingService.Placement.COPY, placed.getPlacement());
+        assertEquals("content", new String(Files.readAllBytes(new File(placed.getUri()).toPath()), "UTF-8"));
+        assertFileExists("source-123", sourceFolder.getRoot());
+    }
+
+    @Test
+    public void replacesExistingTargetFile() throws Exception {
+        targetFolder.newFile("4711/target");
+        Files.write(new File(sourceFolder.getRoot(), "source-123").toPath(), "new".getBytes("UTF-8"));
+        FileHandlingService.PlacedFile placed = placeWith("link,copy");
+        assertEquals("new", new String(Files.readAllBytes(new File(placed.getUri()).toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void keepsExistingTargetFileUnlessReplacing() throws Exception {
+        Files.write(targetFolder.newFile("4711/target").toPath(), "existing".getBytes("UTF-8"));
+        try {
+            fileHandlingService.placeTempfileInTargetFileSpace("source-123", "target", "4711", false);
+            fail("Expected placement to fail");
+        } catch (FileAlreadyExistsException expected) {
+        }
+        assertEquals("existing", new String(Files.readAllBytes(
+                new File(targetFolder.getRoot(), "4711/target").toPath()), "UTF-8"));
+        assertFileExists("source-123", sourceFolder.getRoot());
+    }
+
+    @Test
+    public void computesChecksumOfPlacedFile() throws Exception {
+        for (String placement : new String[]{"move", "link", "copy"}) {
+            Files.write(new File(sourceFolder.getRoot(), "source-123").toPath(), "content".getBytes("UTF-8"));
+            FileHandlingService.PlacedFile placed = placeWith(placement);
+            assertEquals("SHA-512", placed.getChecksumType());
+            assertEquals(SHA512_OF_CONTENT, placed.getChecksum());
+        }
+    }
+
+    @Test
+    public void revertingMoveRestoresTempfile() throws Exception {
+        Files.write(new File(sourceFolder.getRoot(), "source-123").toPath(), "content".getBytes("UTF-8"));
+        FileHandlingService.PlacedFile placed =
+                fileHandlingService.placeTempfileInTargetFileSpace("source-123", "target", "4711");
+
+        fileHandlingService.revertPlacement(placed);
+
+        assertFileNotExists("4711/target", targetFolder.getRoot());
+        assertEquals("content", new String(Files.readAllBytes(
+                new File(sourceFolder.getRoot(), "source-123").toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void revertingLinkOrCopyRemovesTargetFile() throws Exception {
+        for (String placement : new String[]{"link", "copy"}) {
+            FileHandlingService service = new FileHandlingService(
+                    targetFolder.getRoot().getAbsolutePath(),
+                    sourceFolder.getRoot().getAbsolutePath(),
+                    placement, true);
+            service.revertPlacement(service.placeTempfileInTargetFileSpace("source-123", "target", "4711"));
+
+            assertFileNotExists("4711/target", targetFolder.getRoot());
+            assertFileExists("source-123", sourceFolder.getRoot());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnMissingTempfile() throws Exception {
+        fileHandlingService.placeTempfileInTargetFileSpace("no-such-file", "target", "4711");
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsUnknownPlacement() throws Exception {
+        new FileHandlingService(
+                targetFolder.getRoot().getAbsolutePath(),
+                sourceFolder.getRoot().getAbsolutePath(),
+                "teleport", true);
+    }
+
+    @Test
+    public void appendsChunksToUpload() throws Exception {
+        Upload upload = fileHandlingService.createUpload();
+        fileHandlingService.appendToUpload(upload.getName(), 0, new ByteArrayInputStream("con".getBytes("UTF-8")));
+        fileHandlingService.appendToUpload(upload.getName(), 3, new ByteArrayInputStream("tent".getBytes("UTF-8")));
+
+        assertEquals(7, upload.getSize());
+        assertEquals(SHA512_OF_CONTENT, upload.getChecksum());
+        assertEquals("content", new String(Files.readAllBytes(
+                new File(sourceFolder.getRoot(), upload.getName()).toPath()), "UTF-8"));
+    }
+
+    @Test(expected = ResourceConflictException.class)
+    public void rejectsChunkAtWrongOffset() throws Exception {
+        Upload upload = fileHandlingService.createUpload();
+        fileHandlingService.appendToUpload(upload.getName(), 0, new ByteArrayInputStream("con".getBytes("UTF-8")));
+        fileHandlingService.appendToUpload(upload.getName(), 0, new ByteArrayInputStream("tent".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void rejectsSecondChunkWhileReceivingOne() throws Exception {
+        final Upload upload = fileHandlingService.createUpload();
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final InputStream slowChunk = new InputStream() {
+            private boolean sent = false;
+
+            @Override
+            public int read() throws IOException {
+                if (sent) return -1;
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                sent = true;
+                return 'c';
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Upload> first = executor.submit(new Callable<Upload>() {
+                @Override
+                public Upload call() throws Exception {
+                    return fileHandlingService.appendToUpload(upload.getName(), 0, slowChunk);
+                }
+            });
+            reading.await();
+
+            assertEquals(0, upload.getSize());
+            try {
+                fileHandlingService.appendToUpload(upload.getName(), 0, new ByteArrayInputStream("x".getBytes("UTF-8")));
+                fail("Expected second chunk to be rejected");
+            } catch (ResourceConflictException expected) {
+            }
+
+            release.countDown();
+            assertEquals(1, first.get().getSize());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void restoresUploadStateFromTempfile() throws Exception {
+        Upload upload = fileHandlingService.createUpload();
+        fileHandlingService.appendToUpload(upload.getName(), 0, new ByteArrayInputStream("content".getBytes("UTF-8")));
+
+        FileHandlingService restarted = new FileHandlingService(
+                targetFolder.getRoot().getAbsolutePath(),
+                sourceFolder.getRoot().getAbsolutePath());
+        Upload restored = restarted.getUpload(upload.getName());
+
+        assertEquals(7, restored.getSize());
+        assertEquals(SHA512_OF_CONTENT, restored.getChecksum());
+    }
+
+    @Test
+    public void unknownUploadIsNull() throws Exception {
+        assertNull(fileHandlingService.getUpload("upload-00000000-0000-0000-0000-000000000000"));
+        assertNull(fileHandlingService.getUpload("../4711/to-be-renamed"));
+    }
+
+    @Test
+    public void placingUploadKeepsItsChecksum() throws Exception {
+        Upload upload = fileHandlingService.createUpload();
+        fileHandlingService.appendToUpload(upload.getName(), 0, new ByteArrayInputStream("content".getBytes("UTF-8")));
+
+        FileHandlingService.PlacedFile placed =
+                fileHandlingService.placeTempfileInTargetFileSpace(upload.getName(), "target", "4711");
+
+        assertEquals(SHA512_OF_CONTENT, placed.getChecksum());
+        assertNull(fileHandlingService.getUpload(upload.getName()));
+    }
+
+    @Test
+    public void placedUploadTakesNoMoreAppends() throws Exception {
+        for (String placement : new String[]{"move", "link", "copy"}) {
+            FileHandlingService service = new FileHandlingService(
+                    targetFolder.getRoot().getAbsolutePath(),
+                    sourceFolder.getRoot().getAbsolutePath(),
+                    placement, true);
+            Upload upload = service.createUpload();
+            service.appendToUpload(upload.getName(), 0, new ByteArrayInputStream("content".getBytes("UTF-8")));
+
+            service.placeTempfileInTargetFileSpace(upload.getName(), "target", "4711");
+
+            assertNull(service.appendToUpload(upload.getName(), 7, new ByteArrayInputStream("more".getBytes("UTF-8"))));
+            assertNull(service.getUpload(upload.getName()));
+            assertEquals("content", new String(Files.readAllBytes(
+                    new File(targetFolder.getRoot(), "4711/target").toPath()), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void revertingPlacedUploadRestoresIt() throws Exception {
+        FileHandlingService linkingService = new FileHandlingService(
+                targetFolder.getRoot().getAbsolutePath(),
+                sourceFolder.getRoot().getAbsolutePath(),
+                "link", true);
+        Upload upload = linkingService.createUpload();
+        linkingService.appendToUpload(upload.getName(), 0, new ByteArrayInputStream("content".getBytes("UTF-8")));
+
+        linkingService.revertPlacement(
+                linkingService.placeTempfileInTargetFileSpace(upload.getName(), "target", "4711"));
+
+        assertFileNotExists("4711/target", targetFolder.getRoot());
+        assertEquals(SHA512_OF_CONTENT, linkingService.getUpload(upload.getName()).getChecksum());
+    }
+
+    @Test
+    public void expiresAbandonedUploads() throws Exception {
+        FileHandlingService expiringService = new FileHandlingService(
+                targetFolder.getRoot().getAbsolutePath(),
+                sourceFolder.getRoot().getAbsolutePath(),
+                FileHandlingService.DEFAULT_PLACEMENT, true, 60000);
+        Upload abandoned = expiringService.createUpload();
+        Upload active = expiringService.createUpload();
+        new File(sourceFolder.getRoot(), abandoned.getName()).setLastModified(System.currentTimeMillis() - 120000);
+
+        expiringService.expireUploads();
+
+        assertNull(expiringService.getUpload(abandoned.getName()));
+        assertFileNotExists(abandoned.getName(), sourceFolder.getRoot());
+        assertEquals(active.getName(), expiringService.getUpload(active.getName()).getName());
+    }
+
     @Test
     public void renameFile() throws Exception {
         fileHandlingService.renameFileInTargetFileSpace("to-be-renamed", "newname", "4711");
@@ -61,6 +331,13 @@ public class FileHandlingServiceTest {
         assertFileExists("4711/newname", targetFolder.getRoot());
     }
 
+    private FileHandlingService.PlacedFile placeWith(String placement) throws Exception {
+        return new FileHandlingService(
+                targetFolder.getRoot().getAbsolutePath(),
+                sourceFolder.getRoot().getAbsolutePath(),
+                placement, true).placeTempfileInTargetFileSpace("source-123", "target", "4711");
+    }
+
     private void assertFileNotExists(String filename, File root) {
         File f = new File(root.getAbsolutePath(), filename);
         if (f.exists()) {
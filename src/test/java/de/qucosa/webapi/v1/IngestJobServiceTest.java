@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import static org.junit.Assert.*;
+
+public class IngestJobServiceTest {
+
+    @Test
+    public void reportsSucceededJob() {
+        IngestJobService service = new IngestJobService(new SyncTaskExecutor(), 60000);
+
+        IngestJob job = service.submit("qucosa:1", new IngestJobService.IngestWork() {
+            @Override
+            public void run(IngestJob job) {
+                job.step("INGEST");
+            }
+        });
+
+        assertSame(job, service.get(job.getId()));
+        assertEquals(IngestJob.State.SUCCEEDED, job.getState());
+        assertEquals("INGEST", job.getStep());
+    }
+
+    @Test
+    public void reportsFailedJob() {
+        IngestJobService service = new IngestJobService(new SyncTaskExecutor(), 60000);
+
+        IngestJob job = service.submit("qucosa:1", new IngestJobService.IngestWork() {
+            @Override
+            public void run(IngestJob job) throws Exception {
+                throw new Exception("Ingest failed");
+            }
+        });
+
+        assertEquals(IngestJob.State.FAILED, job.getState());
+        assertEquals("Ingest failed", job.getMessage());
+    }
+
+    @Test
+    public void forgetsRejectedJobs() {
+        IngestJobService service = new IngestJobService(new TaskExecutor() {
+            @Override
+            public void execute(Runnable task) {
+                throw new TaskRejectedException("Queue full");
+            }
+        }, 60000);
+
+        try {
+            service.submit("qucosa:1", null);
+            fail("Expected TaskRejectedException");
+        } catch (TaskRejectedException e) {
+            assertEquals(0, service.getJobCount());
+        }
+    }
+
+    @Test
+    public void removesExpiredJobsOnSubmit() {
+        IngestJobService service = new IngestJobService(new SyncTaskExecutor(), -1);
+        IngestJobService.IngestWork noop = new IngestJobService.IngestWork() {
+            @Override
+            public void run(IngestJob job) {
+            }
+        };
+
+        IngestJob first = service.submit("qucosa:1", noop);
+        service.submit("qucosa:2", noop);
+
+        assertNull(service.get(first.getId()));
+        assertEquals(1, service.getJobCount());
+    }
+
+}
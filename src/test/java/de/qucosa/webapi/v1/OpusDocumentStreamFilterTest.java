@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+import de.qucosa.fedora.FedoraRepository;
+import de.qucosa.util.XMLToolkit;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathEvaluatesTo;
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathExists;
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathNotExists;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class OpusDocumentStreamFilterTest {
+
+    private FedoraRepository fedoraRepository;
+    private OpusDocumentStreamFilter filter;
+
+    @Before
+    public void setUp() {
+        fedoraRepository = mock(FedoraRepository.class);
+        filter = new OpusDocumentStreamFilter(new XMLToolkit(), fedoraRepository, "qucosa:4711");
+    }
+
+    @Test
+    public void removesEmptyTopLevelFields() throws Exception {
+        String result = filter(
+                "<Opus version=\"2.0\">" +
+                        "<Opus_Document>" +
+                        "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                        "<TitleSub/>" +
+                        "<Language></Language>" +
+                        "</Opus_Document>" +
+                        "</Opus>");
+
+        assertXpathEvaluatesTo("Macbeth", "/Opus/Opus_Document/TitleMain/Value", result);
+        assertXpathNotExists("/Opus/Opus_Document/TitleSub", result);
+        assertXpathNotExists("/Opus/Opus_Document/Language", result);
+    }
+
+    @Test
+    public void keepsEmptyNestedFields() throws Exception {
+        String result = filter(
+                "<Opus version=\"2.0\">" +
+                        "<Opus_Document>" +
+                        "<PersonAuthor><LastName>Shakespear</LastName><FirstName/></PersonAuthor>" +
+                        "</Opus_Document>" +
+                        "</Opus>");
+
+        assertXpathExists("/Opus/Opus_Document/PersonAuthor/FirstName", result);
+    }
+
+    @Test
+    public void removesFileElementsWithoutDatastream() throws Exception {
+        when(fedoraRepository.getDatastreamIds("qucosa:4711")).thenReturn(
+                new HashSet<>(Arrays.asList("DC", "QUCOSA-XML", "QUCOSA-ATT-1")));
+
+        String result = filter(
+                "<Opus version=\"2.0\">" +
+                        "<Opus_Document>" +
+                        "<File id=\"1\"><PathName>one.pdf</PathName></File>" +
+                        "<File id=\"2\"><PathName>two.pdf</PathName></File>" +
+                        "<File><PathName>no-id.pdf</PathName></File>" +
+                        "</Opus_Document>" +
+                        "</Opus>");
+
+        assertXpathExists("/Opus/Opus_Document/File[@id='1']", result);
+        assertXpathNotExists("/Opus/Opus_Document/File[@id='2']", result);
+        assertXpathNotExists("/Opus/Opus_Document/File[not(@id)]", result);
+        verify(fedoraRepository, times(1)).getDatastreamIds("qucosa:4711");
+    }
+
+    @Test
+    public void doesNotListDatastreamsWithoutFileElements() throws Exception {
+        filter("<Opus version=\"2.0\">" +
+                "<Opus_Document>" +
+                "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                "</Opus_Document>" +
+                "</Opus>");
+
+        verify(fedoraRepository, never()).getDatastreamIds(anyString());
+    }
+
+    @Test
+    public void writesOnlyDocumentElementAsFragment() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.filterDocumentElement(IOUtils.toInputStream(
+                "<?xml version=\"1.0\"?>" +
+                        "<Opus version=\"2.0\">" +
+                        "<Opus_Document>" +
+                        "<TitleMain><Value>Macbeth</Value></TitleMain>" +
+                        "</Opus_Document>" +
+                        "</Opus>"), out);
+        String result = out.toString("UTF-8");
+
+        assertEquals("<Opus_Document><TitleMain><Value>Macbeth</Value></TitleMain></Opus_Document>", result);
+    }
+
+    private String filter(String xml) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.filter(IOUtils.toInputStream(xml), out);
+        return out.toString("UTF-8");
+    }
+
+}
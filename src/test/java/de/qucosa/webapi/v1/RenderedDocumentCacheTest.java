@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qucosa.webapi.v1;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class RenderedDocumentCacheTest {
+
+    private RenderedDocumentCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new RenderedDocumentCache(10, 8);
+    }
+
+    @Test
+    public void returnsCachedBodyForMatchingEntityTag() {
+        cache.put("qucosa:1", "\"a\"", new byte[]{1, 2, 3});
+
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get("qucosa:1", "\"a\""));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void dropsEntryWithStaleEntityTag() {
+        cache.put("qucosa:1", "\"a\"", new byte[]{1, 2, 3});
+
+        assertNull(cache.get("qucosa:1", "\"b\""));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntriesWhenOverBudget() {
+        cache.put("qucosa:1", "\"a\"", new byte[4]);
+        cache.put("qucosa:2", "\"a\"", new byte[4]);
+        cache.get("qucosa:1", "\"a\"");
+        cache.put("qucosa:3", "\"a\"", new byte[4]);
+
+        assertNotNull(cache.get("qucosa:1", "\"a\""));
+        assertNull(cache.get("qucosa:2", "\"a\""));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(8, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void doesNotCacheOversizedEntries() {
+        cache.put("qucosa:1", "\"a\"", new byte[9]);
+
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void invalidatesEntry() {
+        cache.put("qucosa:1", "\"a\"", new byte[]{1});
+        cache.invalidate("qucosa:1");
+
+        assertNull(cache.get("qucosa:1", "\"a\""));
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void capturesWrittenBytesWhileWritingThrough() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        long generation = cache.generation("qucosa:1");
+        OutputStream out = cache.capture(target);
+        out.write(new byte[]{1, 2, 3});
+        cache.putCaptured("qucosa:1", "\"a\"", generation, out);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, target.toByteArray());
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get("qucosa:1", "\"a\""));
+    }
+
+    @Test
+    public void stopsCapturingWhenEntryLimitIsExceeded() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        long generation = cache.generation("qucosa:1");
+        OutputStream out = cache.capture(target);
+        out.write(new byte[12]);
+        cache.putCaptured("qucosa:1", "\"a\"", generation, out);
+
+        assertEquals(12, target.size());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void doesNotStoreRenderingStartedBeforeInvalidation() throws Exception {
+        long generation = cache.generation("qucosa:1");
+        OutputStream out = cache.capture(new ByteArrayOutputStream());
+        out.write(new byte[]{1, 2, 3});
+        cache.invalidate("qucosa:1");
+        cache.putCaptured("qucosa:1", "\"a\"", generation, out);
+
+        assertNull(cache.get("qucosa:1", "\"a\""));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+}
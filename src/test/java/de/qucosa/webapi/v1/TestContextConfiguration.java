@@ -2,13 +2,16 @@ package de.qucosa.webapi.v1;
 
 import de.qucosa.fedora.FedoraRepository;
 import de.qucosa.urn.URNConfiguration;
+import de.qucosa.util.XMLToolkit;
 import org.junit.rules.TemporaryFolder;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerConfigurationException;
 import java.io.IOException;
 
 import static org.mockito.Mockito.mock;
@@ -50,15 +53,90 @@ public class TestContextConfiguration {
         return new URNConfiguration("bsz", "15", "qucosa");
     }
 
+    @Bean
+    public RenderedDocumentCache renderedDocumentCache() {
+        return new RenderedDocumentCache(1048576, 65536);
+    }
+
+    @Bean
+    public AsyncTaskExecutor documentFetchExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        return executor;
+    }
+
+    @Bean
+    public AsyncTaskExecutor attachmentExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        return executor;
+    }
+
+    @Bean
+    public AsyncTaskExecutor updateExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        return executor;
+    }
+
+    @Bean
+    public AsyncTaskExecutor batchIngestExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        return executor;
+    }
+
+    @Bean
+    public DocumentLockService documentLockService() {
+        return new DocumentLockService(16, 1000);
+    }
+
+    @Bean
+    public XMLToolkit xmlToolkit() {
+        return new XMLToolkit();
+    }
+
+    @Bean
+    public DocumentListingService documentListingService() {
+        return new DocumentListingService(DocumentListingService.SOURCE_FEDORA, null);
+    }
+
+    @Bean
+    public IngestJobService ingestJobService() {
+        return new IngestJobService(new SyncTaskExecutor(), 3600000);
+    }
+
     @Bean
     public DocumentResource documentResource(
             FedoraRepository fedoraRepository,
             URNConfiguration urnConfiguration,
-            FileHandlingService fileHandlingService
-    ) throws ParserConfigurationException, TransformerConfigurationException {
+            FileHandlingService fileHandlingService,
+            RenderedDocumentCache renderedDocumentCache,
+            @Qualifier("documentFetchExecutor") AsyncTaskExecutor documentFetchExecutor,
+            XMLToolkit xmlToolkit,
+            DocumentListingService documentListingService,
+            IngestJobService ingestJobService,
+            @Qualifier("attachmentExecutor") AsyncTaskExecutor attachmentExecutor,
+            @Qualifier("batchIngestExecutor") AsyncTaskExecutor batchIngestExecutor,
+            DocumentLockService documentLockService,
+            @Qualifier("updateExecutor") AsyncTaskExecutor updateExecutor) {
         return new DocumentResource(fedoraRepository,
                 urnConfiguration,
-                fileHandlingService);
+                fileHandlingService,
+                renderedDocumentCache,
+                documentFetchExecutor,
+                xmlToolkit,
+                documentListingService,
+                ingestJobService,
+                attachmentExecutor,
+                batchIngestExecutor,
+                documentLockService,
+                updateExecutor);
+    }
+
+    @Bean
+    public UploadResource uploadResource(FileHandlingService fileHandlingService, XMLToolkit xmlToolkit) {
+        return new UploadResource(fileHandlingService, xmlToolkit);
     }
 
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 SLUB Dresden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.qucosa.webapi.v1;
+
+import org.custommonkey.xmlunit.SimpleNamespaceContext;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.xpath;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestContextConfiguration.class)
+@ActiveProfiles("real-file-handling")
+@WebAppConfiguration
+public class UploadResourceTest {
+
+    private static final String SHA512_OF_CONTENT = "b2d1d285b5199c85f988d03649c37e44fd3dde01e5d69c50fef90651962f48110e9340b60d49a479c4c0b53f5f07d690686dd87d2481937a512e8b85ee7c617f";
+
+    @Autowired
+    private WebApplicationContext wac;
+
+    private MockMvc mockMvc;
+
+    static {
+        Map<String, String> prefixMap = new HashMap<>();
+        prefixMap.put("xlink", "http://www.w3.org/1999/xlink");
+        XMLUnit.setXpathNamespaceContext(new SimpleNamespaceContext(prefixMap));
+    }
+
+    @Before
+    public void setUpMockWebContext() {
+        mockMvc = MockMvcBuilders.webAppContextSetup(wac).build();
+    }
+
+    @Test
+    public void createsUpload() throws Exception {
+        mockMvc.perform(post("/upload")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isCreated())
+                .andExpect(xpath("/Opus/Upload/@size").string("0"))
+                .andExpect(xpath("/Opus/Upload/@name").exists());
+    }
+
+    @Test
+    public void appendsChunks() throws Exception {
+        String location = createUpload();
+
+        mockMvc.perform(put(location).param("offset", "0").content("con".getBytes("UTF-8"))
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isOk())
+                .andExpect(xpath("/Opus/Upload/@size").string("3"));
+        mockMvc.perform(put(location).param("offset", "3").content("tent".getBytes("UTF-8"))
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isOk())
+                .andExpect(xpath("/Opus/Upload/@size").string("7"))
+                .andExpect(xpath("/Opus/Upload/HashValue[Type='SHA-512']/Value").string(SHA512_OF_CONTENT));
+    }
+
+    @Test
+    public void chunkAtWrongOffsetIsAConflict() throws Exception {
+        String location = createUpload();
+        mockMvc.perform(put(location).param("offset", "0").content("con".getBytes("UTF-8")));
+
+        mockMvc.perform(put(location).param("offset", "0").content("tent".getBytes("UTF-8"))
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isConflict())
+                .andExpect(xpath("/Opus/Upload/@size").string("3"))
+                .andExpect(xpath("/Opus/Error/@message").exists());
+    }
+
+    @Test
+    public void reportsUploadState() throws Exception {
+        String location = createUpload();
+        mockMvc.perform(put(location).param("offset", "0").content("content".getBytes("UTF-8")));
+
+        mockMvc.perform(get(location)
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isOk())
+                .andExpect(xpath("/Opus/Upload/@size").string("7"));
+    }
+
+    @Test
+    public void unknownUploadReturns404() throws Exception {
+        mockMvc.perform(get("/upload/upload-00000000-0000-0000-0000-000000000000")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andExpect(status().isNotFound());
+    }
+
+    private String createUpload() throws Exception {
+        MvcResult result = mockMvc.perform(post("/upload")
+                .accept(new MediaType("application", "vnd.slub.qucosa-v1+xml")))
+                .andReturn();
+        String location = result.getResponse().getHeader("Location");
+        return location.substring(location.indexOf("/upload/"));
+    }
+
+}